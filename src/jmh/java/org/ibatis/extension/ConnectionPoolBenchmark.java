@@ -0,0 +1,54 @@
+package org.ibatis.extension;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接池在多线程下取出与归还连接, 以及语句缓存命中时prepareStatement的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ConnectionPoolBenchmark {
+
+    @Param({"4"})
+    public int maxActive;
+
+    @Param({"0", "64"})
+    public int statementCacheSize;
+
+    private ConnectionPool pool;
+
+    @Setup
+    public void setup() {
+        pool = new ConnectionPool(Driver.SQLITE.driverName, "jdbc:sqlite::memory:", new Properties(), maxActive, maxActive,
+                20000, null, 30000, statementCacheSize, null, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public void checkout() throws SQLException {
+        pool.getConnection().close();
+    }
+
+    @Benchmark
+    public void prepare() throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("select ?")) {
+            statement.setInt(1, 1);
+        }
+    }
+}
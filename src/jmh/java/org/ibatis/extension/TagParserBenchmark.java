@@ -0,0 +1,58 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.benchmark.MemberMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不经过缓存展开一个mapper全部语句的标签, 即注册时TagParser的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagParserBenchmark {
+
+    @Param({"SQLITE", "MYSQL"})
+    public String driver;
+
+    private Driver resolved;
+    private final List<Method> methods = new ArrayList<>();
+    private final List<Annotation> annotations = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        //JMH生成的类不在本包内, 无法直接以Driver作为@Param
+        resolved = Driver.valueOf(driver);
+        for (Method method : MemberMapper.class.getMethods()) {
+            for (Class<? extends Annotation> type : Arrays.asList(Select.class, Insert.class, Update.class)) {
+                Annotation annotation = method.getAnnotation(type);
+                if (annotation != null) {
+                    methods.add(method);
+                    annotations.add(annotation);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void replaceTags(Blackhole blackhole) {
+        //TagParser按Method缓存展开结果, 每次使用新的实例才能测到展开本身
+        TagParser parser = new TagParser(resolved);
+        for (int i = 0; i < methods.size(); i++) {
+            blackhole.consume(parser.replaceTags(methods.get(i), annotations.get(i)));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.ibatis.extension.benchmark;
+
+import org.ibatis.extension.SQL;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程共用一个SQL实例. 内存库只有一个连接, 衡量的是连接池与分派路径在竞争下的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ContentionBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private SQL sql;
+    private MemberMapper mapper;
+
+    @Setup
+    public void setup() {
+        sql = Members.open(false, metrics);
+        mapper = sql.getMapper(MemberMapper.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sql.close();
+    }
+
+    @Benchmark
+    public Member pointSelect() {
+        return mapper.findById(1 + ThreadLocalRandom.current().nextInt(Members.ROWS));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public Member mixedRead() {
+        return mapper.findById(1 + ThreadLocalRandom.current().nextInt(Members.ROWS));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public Member mixedUpdate() {
+        Member member = Members.member(ThreadLocalRandom.current().nextInt(Members.ROWS));
+        member.id = member.money + 1;
+        mapper.update(member);
+        return member;
+    }
+}
@@ -0,0 +1,84 @@
+package org.ibatis.extension.benchmark;
+
+import org.ibatis.extension.SQL;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程下一次mapper调用的完整耗时: 分派, 参数映射, 执行与结果映射
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+
+    @Param({"false", "true"})
+    public boolean generateMappers;
+
+    private SQL sql;
+    private MemberMapper mapper;
+    private int inserted;
+
+    @Setup
+    public void setup() {
+        sql = Members.open(generateMappers, false);
+        mapper = sql.getMapper(MemberMapper.class);
+        inserted = Members.ROWS;
+    }
+
+    @TearDown
+    public void tearDown() {
+        sql.close();
+    }
+
+    @Benchmark
+    public Member pointSelect() {
+        return mapper.findById(1 + ThreadLocalRandom.current().nextInt(Members.ROWS));
+    }
+
+    @Benchmark
+    public Member columnsSelect() {
+        return mapper.findByAccount("account" + ThreadLocalRandom.current().nextInt(Members.ROWS));
+    }
+
+    @Benchmark
+    public int withinSelect() {
+        return mapper.countToday();
+    }
+
+    @Benchmark
+    public List<Member> pageSelect() {
+        return mapper.page(ThreadLocalRandom.current().nextInt(Members.ROWS - 100));
+    }
+
+    @Benchmark
+    public List<Member> listMapping() {
+        return mapper.list();
+    }
+
+    @Benchmark
+    public int[] primitiveArray() {
+        return mapper.moneys();
+    }
+
+    @Benchmark
+    public Member insertOmit() {
+        Member member = Members.member(inserted++);
+        mapper.add(member);
+        return member;
+    }
+
+    @Benchmark
+    public Member updateOmit() {
+        Member member = Members.member(ThreadLocalRandom.current().nextInt(Members.ROWS));
+        member.id = member.money + 1;
+        mapper.update(member);
+        return member;
+    }
+}
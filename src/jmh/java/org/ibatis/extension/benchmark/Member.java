@@ -0,0 +1,23 @@
+package org.ibatis.extension.benchmark;
+
+import org.ibatis.extension.annotations.Id;
+import org.ibatis.extension.annotations.Index;
+import org.ibatis.extension.annotations.Unique;
+
+import java.sql.Timestamp;
+
+public class Member {
+
+    @Id
+    public int id;
+
+    @Unique
+    public String account;
+
+    public String email = "";
+
+    public int money;
+
+    @Index
+    public Timestamp created;
+}
@@ -0,0 +1,40 @@
+package org.ibatis.extension.benchmark;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.annotations.Bind;
+
+import java.util.List;
+
+@Bind(Member.class)
+public interface MemberMapper {
+
+    @Insert("@omit")
+    void add(Member member);
+
+    @Insert("@omit")
+    int addAll(List<Member> members);
+
+    @Update("@omit")
+    void update(Member member);
+
+    @Select("select*from @table where id=#{id}")
+    Member findById(@Param("id") int id);
+
+    @Select("select @columns(email) from @table where account=#{account}")
+    Member findByAccount(@Param("account") String account);
+
+    @Select("select count(*) from @table where @within(created,day,1)")
+    int countToday();
+
+    @Select("select*from @table where @page(#{after}, 100)")
+    List<Member> page(@Param("after") int after);
+
+    @Select("select*from @table limit 1000")
+    List<Member> list();
+
+    @Select("select money from @table")
+    int[] moneys();
+}
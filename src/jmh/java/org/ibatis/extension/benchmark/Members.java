@@ -0,0 +1,42 @@
+package org.ibatis.extension.benchmark;
+
+import org.ibatis.extension.SQL;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基准测试共用的内存数据库. 内存库只有一个写连接, 连接一直留在池中, 库的内容也就一直存在
+ */
+final class Members {
+
+    static final int ROWS = 10000;
+
+    private Members() {
+    }
+
+    static SQL open(boolean generateMappers, boolean metrics) {
+        SQL sql = new SQL.Builder()
+                .url("sqlite::memory:")
+                .generateMappers(generateMappers)
+                .metrics(metrics)
+                .build();
+        MemberMapper mapper = sql.getMapper(MemberMapper.class);
+        List<Member> members = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            members.add(member(i));
+        }
+        mapper.addAll(members);
+        return sql;
+    }
+
+    static Member member(int i) {
+        Member member = new Member();
+        member.account = "account" + i;
+        member.email = "member" + i + "@example.org";
+        member.money = i;
+        member.created = new Timestamp(System.currentTimeMillis() - i * 60_000L);
+        return member;
+    }
+}
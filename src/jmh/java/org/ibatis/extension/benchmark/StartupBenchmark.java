@@ -0,0 +1,26 @@
+package org.ibatis.extension.benchmark;
+
+import org.ibatis.extension.SQL;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 构建SQL并注册mapper的耗时: 建表, 建索引, 展开标签与解析statement
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Benchmark
+    public int buildAndRegister() {
+        //每次都关闭, 避免累积的连接池与内存库计入耗时
+        try (SQL sql = new SQL.Builder().url("sqlite::memory:").build()) {
+            return sql.getMapper(MemberMapper.class).countToday();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.ibatis.extension.annotations.AsyncAppend;
+import org.ibatis.extension.annotations.Bind;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link AsyncAppend} mapper的写入队列. 调用方只把实体放入无锁队列, 容量由Semaphore限制;
+ * 后台线程在攒满batchSize或等待flushInterval后取出, 按语句分组以多行VALUES插入, 每批一个事务.
+ * 整批失败时逐行重试, 仍失败的行计入failed并记录日志后丢弃, 不影响同批的其他行.
+ */
+final class Appender {
+
+    //多行插入语句的id后缀, 由DefaultMapperAnnotationBuilder注册
+    static final String STATEMENT_SUFFIX = "!append";
+
+    private static final Log LOG = LogFactory.getLog(Appender.class);
+
+    private final String name;
+    private final SqlSessionFactory sqlSessionFactory;
+    private final Metrics metrics;
+    private final int batchSize;
+    //每条多行语句的行数, 受驱动的占位符上限与语句字节数限制
+    private final InsertChunker chunker;
+    private final long flushInterval;
+
+    private final Queue<Row> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore capacity;
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong flushTarget = new AtomicLong();
+    //正在append的调用数, 先计数再检查closed, close等待其归零后才能确定不会再有新行
+    private final AtomicInteger appending = new AtomicInteger();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread writer;
+    private volatile boolean closed;
+
+    Appender(Class<?> mapper, SqlSessionFactory sqlSessionFactory, Driver driver, long maxPacketBytes, Metrics metrics) {
+        AsyncAppend append = mapper.getAnnotation(AsyncAppend.class);
+        if (append.capacity() < 1 || append.batchSize() < 1 || append.flushInterval() < 1) {
+            throw new IllegalArgumentException("Invalid @AsyncAppend on " + mapper.getName());
+        }
+        this.name = mapper.getName();
+        this.sqlSessionFactory = sqlSessionFactory;
+        this.metrics = metrics;
+        this.batchSize = append.batchSize();
+        Bind bind = mapper.getAnnotation(Bind.class);
+        List<Field> fields = Util.toInsertFields(bind);
+        this.chunker = new InsertChunker(sqlSessionFactory.getConfiguration(), bind.value(), fields,
+                Math.min(batchSize, driver.maxVariables / Math.max(1, fields.size())), maxPacketBytes);
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(append.flushInterval());
+        this.capacity = new Semaphore(append.capacity());
+        if (metrics != null) {
+            metrics.register("Append", name, () -> statistics().toAttributes());
+        }
+    }
+
+    void append(MapperMethodInvoker invoker, Object entity) {
+        appending.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("SQL is closed");
+            }
+            //队列已满时等待后台线程写出, 即背压
+            if (!capacity.tryAcquire()) {
+                try {
+                    capacity.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the append queue: " + name, e);
+                }
+            }
+            queue.offer(new Row(invoker, entity));
+            long count = appended.incrementAndGet();
+            //close之后放入的行由close写出, 不再启动后台线程
+            if (closed) {
+                return;
+            }
+            if (started.compareAndSet(false, true)) {
+                Thread thread = new Thread(this::run, "sql-append-" + invoker.entityType.getSimpleName());
+                thread.setDaemon(true);
+                writer = thread;
+                thread.start();
+            } else if (count - completed.get() >= batchSize) {
+                wake();
+            }
+        } finally {
+            appending.decrementAndGet();
+        }
+    }
+
+    /**
+     * 等待调用前放入队列的行全部写入(或失败)
+     */
+    void flush() {
+        long target = appended.get();
+        if (completed.get() >= target) {
+            return;
+        }
+        flushTarget.accumulateAndGet(target, Math::max);
+        wake();
+        lock.lock();
+        try {
+            while (completed.get() < target) {
+                progress.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写出队列中剩余的行后结束后台线程, 之后的append抛出IllegalStateException
+     */
+    void close() {
+        closed = true;
+        wake();
+        //与后台线程一起排空队列, 直到没有已通过closed检查的append; 等待容量的append也由此得到空位
+        boolean idle;
+        do {
+            idle = appending.get() == 0;
+            run();
+            if (!idle) {
+                Thread.yield();
+            }
+        } while (!idle);
+
+        //此后writer不再变化, 等待其写完手中的批次
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    SQL.AppendStatistics statistics() {
+        return new SQL.AppendStatistics(appended.get() - completed.get(), appended.get(), written.sum(), failed.sum(), batches.sum());
+    }
+
+    private void wake() {
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        List<Row> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            long deadline = System.nanoTime() + flushInterval;
+            long remaining;
+            //攒满batchSize、到达flushInterval或有flush/close请求时写出
+            while (!closed && appended.get() - completed.get() < batchSize && flushTarget.get() <= completed.get()
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            Row row;
+            while ((row = queue.poll()) != null) {
+                batch.add(row);
+                if (batch.size() >= batchSize) {
+                    write(batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    private void write(List<Row> batch) {
+        try {
+            try {
+                insert(batch);
+                written.add(batch.size());
+            } catch (Throwable ex) {
+                //整批已回滚, 逐行重试, 只丢弃出错的行
+                for (Row row : batch) {
+                    try {
+                        insert(Collections.singletonList(row));
+                        written.increment();
+                    } catch (Throwable e) {
+                        failed.increment();
+                        LOG.error("Dropped a row appended to " + name + ": " + row.entity, e);
+                    }
+                }
+            }
+        } finally {
+            capacity.release(batch.size());
+            completed.addAndGet(batch.size());
+            batch.clear();
+            lock.lock();
+            try {
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void insert(List<Row> rows) {
+        //同一mapper的多个插入方法各自成组, 保持每组内的顺序
+        Map<MapperMethodInvoker, List<Object>> groups = new LinkedHashMap<>();
+        for (Row row : rows) {
+            groups.computeIfAbsent(row.invoker, k -> new ArrayList<>()).add(row.entity);
+        }
+        long start = System.nanoTime();
+        boolean error = true;
+        try (SqlSession session = sqlSessionFactory.openSession(ExecutorType.REUSE)) {
+            for (Map.Entry<MapperMethodInvoker, List<Object>> group : groups.entrySet()) {
+                group.getKey().resolve(session);
+                String statement = group.getKey().statement + STATEMENT_SUFFIX;
+                List<Object> entities = group.getValue();
+                for (int i = 0, end; i < entities.size(); i = end) {
+                    end = chunker.end(entities, i);
+                    session.insert(statement, entities.subList(i, end));
+                }
+            }
+            session.commit();
+            batches.increment();
+            error = false;
+        } finally {
+            if (metrics != null) {
+                long elapsed = System.nanoTime() - start;
+                for (MapperMethodInvoker invoker : groups.keySet()) {
+                    metrics.statement(invoker.statement + STATEMENT_SUFFIX).record(elapsed, error);
+                }
+            }
+        }
+    }
+
+    private static final class Row {
+
+        private final MapperMethodInvoker invoker;
+        private final Object entity;
+
+        private Row(MapperMethodInvoker invoker, Object entity) {
+            this.invoker = invoker;
+            this.entity = entity;
+        }
+    }
+}
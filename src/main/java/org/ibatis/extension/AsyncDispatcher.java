@@ -0,0 +1,223 @@
+package org.ibatis.extension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 执行返回CompletableFuture的mapper方法. 查询与批量写入直接提交给executor;
+ * 单条写入先进入队列, 由同一时刻唯一的排空任务把已到达的写入合并到一个事务中提交, 每个事务最多groupSize条.
+ * 合并的事务失败时整组回滚, 再逐条在独立事务中执行, 每个future的结果与单独调用时相同.
+ * close后不再接受调用, 并等待已接受的调用(含队列中的写入)全部完成.
+ */
+final class AsyncDispatcher {
+
+    //默认线程池与写入队列的容量, 超出时future以RejectedExecutionException失败
+    static final int QUEUE_CAPACITY = 10000;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final DefaultSQL sql;
+    private final Executor executor;
+    //未指定executor时自行创建, close时关闭
+    private final boolean ownsExecutor;
+    private final int groupSize;
+    private final Queue<Write> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    //已接受但future尚未完成的调用数, 先计数再检查closed, close等待其归零
+    private final AtomicInteger tasks = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();
+    private volatile boolean closed;
+
+    AsyncDispatcher(DefaultSQL sql, Executor executor, int threads, int groupSize) {
+        this.sql = sql;
+        this.ownsExecutor = executor == null;
+        this.executor = executor == null ? defaultExecutor(threads) : executor;
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * JDK 21起每个调用使用一个虚拟线程, 并发由连接池的Semaphore限制; 更早的JDK使用固定大小的守护线程池
+     */
+    private static Executor defaultExecutor(int threads) {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                Thread thread = new Thread(r, "sql-async-" + THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    CompletableFuture<Object> submit(Class<?> clazz, MapperMethodInvoker invoker, Object[] args) {
+        tasks.incrementAndGet();
+        if (closed) {
+            finished(1);
+            return CompletableFuture.failedFuture(new RejectedExecutionException("SQL is closed"));
+        }
+        if (!invoker.write || invoker.bulk) {
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return sql.invokeNow(clazz, invoker, args);
+                    } finally {
+                        finished(1);
+                    }
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                finished(1);
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        if (pending.incrementAndGet() > QUEUE_CAPACITY) {
+            pending.decrementAndGet();
+            finished(1);
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many pending writes: " + QUEUE_CAPACITY));
+        }
+        Write write = new Write(clazz, invoker, args);
+        writes.offer(write);
+        schedule();
+        return write.future;
+    }
+
+    /**
+     * 停止接受新的调用, 等待已接受的调用与队列中的写入完成后关闭自行创建的executor; 外部executor不会关闭
+     */
+    void close() {
+        closed = true;
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (tasks.get() > 0) {
+                idle.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (ownsExecutor) {
+            ExecutorService service = (ExecutorService) executor;
+            service.shutdown();
+            //排空任务在最后一个future完成后才退出
+            while (!service.isTerminated()) {
+                try {
+                    service.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finished(int count) {
+        if (tasks.addAndGet(-count) == 0 && closed) {
+            lock.lock();
+            try {
+                idle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void schedule() {
+        if (writes.isEmpty() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+            Write write;
+            while ((write = writes.poll()) != null) {
+                pending.decrementAndGet();
+                write.future.completeExceptionally(e);
+                finished(1);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Write> group = new ArrayList<>();
+            Write write;
+            do {
+                group.clear();
+                while (group.size() < groupSize && (write = writes.poll()) != null) {
+                    group.add(write);
+                }
+                pending.addAndGet(-group.size());
+                commit(group);
+            } while (!group.isEmpty());
+        } finally {
+            draining.set(false);
+        }
+        //释放标记前后到达的写入可能没有排空任务处理
+        schedule();
+    }
+
+    private void commit(List<Write> group) {
+        if (group.size() > 1) {
+            try {
+                sql.transaction(s -> {
+                    for (Write write : group) {
+                        write.result = sql.invokeNow(write.clazz, write.invoker, write.args);
+                    }
+                    return null;
+                });
+                for (Write write : group) {
+                    write.future.complete(write.result);
+                }
+                finished(group.size());
+                return;
+            } catch (Throwable ex) {
+                //整组已回滚, 逐条重新执行, 只有出错的写入失败
+            }
+        }
+        for (Write write : group) {
+            try {
+                write.future.complete(sql.invokeNow(write.clazz, write.invoker, write.args));
+            } catch (Throwable ex) {
+                write.future.completeExceptionally(ex);
+            }
+        }
+        finished(group.size());
+    }
+
+    private static final class Write {
+
+        private final Class<?> clazz;
+        private final MapperMethodInvoker invoker;
+        private final Object[] args;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private Object result;
+
+        private Write(Class<?> clazz, MapperMethodInvoker invoker, Object[] args) {
+            this.clazz = clazz;
+            this.invoker = invoker;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.ibatis.extension;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * 用Semaphore限制外部DataSource同时借出的连接数. 许可数不超过外部连接池的上限时, 等待都发生在Semaphore上,
+ * 外部连接池(如PooledDataSource的synchronized/wait)不会再阻塞, 虚拟线程等待连接时不会占住载体线程.
+ */
+final class BoundedDataSource implements DataSource {
+
+    private final DataSource dataSource;
+    private final Semaphore permits;
+    private final long checkoutTimeout;
+    private final Metrics metrics;
+    private final LatencyHistogram checkouts;
+
+    BoundedDataSource(DataSource dataSource, int maxConcurrency, long checkoutTimeout, Metrics metrics, LatencyHistogram checkouts) {
+        this.dataSource = dataSource;
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.checkoutTimeout = checkoutTimeout;
+        this.metrics = metrics;
+        this.checkouts = checkouts;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(dataSource::getConnection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection(() -> dataSource.getConnection(username, password));
+    }
+
+    private Connection getConnection(ConnectionSource source) throws SQLException {
+        if (metrics == null) {
+            return checkout(source);
+        }
+        long start = System.nanoTime();
+        try {
+            return checkout(source);
+        } finally {
+            metrics.checkout(checkouts, System.nanoTime() - start);
+        }
+    }
+
+    private Connection checkout(ConnectionSource source) throws SQLException {
+        try {
+            if (!permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Timed out after " + checkoutTimeout + "ms waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+
+        Connection real;
+        try {
+            real = source.get();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        //close只归还一次许可, 重复close仍交给外部连接池处理
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(BoundedDataSource.class.getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(real, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if ("close".equals(method.getName()) && released.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * 从外部DataSource取连接, 带或不带用户名密码
+     */
+    private interface ConnectionSource {
+
+        Connection get() throws SQLException;
+    }
+}
@@ -0,0 +1,509 @@
+package org.ibatis.extension;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * 轻量连接池. 活动连接数由Semaphore限制, 空闲连接放在无锁的双端队列中, 获取与归还都不经过全局锁.
+ * 空闲连接按后进先出复用, 空闲超过validationInterval的连接在取出时校验.
+ * 每个物理连接带有按SQL缓存的PreparedStatement, 跨SqlSession复用, 省去重复的prepare.
+ */
+final class ConnectionPool implements DataSource {
+
+    private final String url;
+    private final Properties properties;
+    private final int maxIdle;
+    private final long checkoutTimeout;
+    private final String validationQuery;
+    private final long validationInterval;
+    private final int statementCacheSize;
+    private final Metrics metrics;
+    private final LatencyHistogram checkouts;
+
+    private final int maxActive;
+    private final Semaphore permits;
+    //每个线程当前持有的连接数. 持有全部连接的线程再次获取必然等到超时, 例如遍历未关闭的Stream时调用其他mapper方法
+    private final ThreadLocal<AtomicInteger> held = ThreadLocal.withInitial(AtomicInteger::new);
+    private final Deque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private volatile boolean closed;
+    private PrintWriter logWriter;
+
+    ConnectionPool(String driverName, String url, Properties properties, int maxActive, int maxIdle,
+                   long checkoutTimeout, String validationQuery, long validationInterval, int statementCacheSize,
+                   Metrics metrics, LatencyHistogram checkouts) {
+        try {
+            Class.forName(driverName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Driver not found: " + driverName, e);
+        }
+        this.url = url;
+        this.properties = properties;
+        this.maxIdle = Math.min(maxIdle, maxActive);
+        this.checkoutTimeout = checkoutTimeout;
+        this.validationQuery = validationQuery;
+        this.validationInterval = validationInterval;
+        this.statementCacheSize = statementCacheSize;
+        this.metrics = metrics;
+        this.checkouts = checkouts;
+        this.maxActive = maxActive;
+        this.permits = new Semaphore(maxActive);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (metrics == null) {
+            return checkout();
+        }
+        long start = System.nanoTime();
+        try {
+            return checkout();
+        } finally {
+            metrics.checkout(checkouts, System.nanoTime() - start);
+        }
+    }
+
+    private Connection checkout() throws SQLException {
+        AtomicInteger owned = held.get();
+        if (owned.get() >= maxActive) {
+            throw new SQLTransientConnectionException("All " + maxActive + " connection(s) of the pool are held by the current thread; "
+                    + "close the open Stream/Cursor before calling other mapper methods, "
+                    + "or iterate it inside SQL.transaction so that the calls share its connection");
+        }
+        try {
+            if (!permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Timed out after " + checkoutTimeout + "ms waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            if (closed) {
+                throw new SQLNonTransientConnectionException("Connection pool is closed");
+            }
+            IdleConnection connection = null;
+            IdleConnection candidate;
+            while (connection == null && (candidate = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (isValid(candidate)) {
+                    connection = candidate;
+                } else {
+                    closeQuietly(candidate.connection);
+                }
+            }
+            if (connection == null) {
+                connection = new IdleConnection(DriverManager.getConnection(url, properties),
+                        statementCacheSize > 0 ? new StatementCache(statementCacheSize) : null);
+            }
+            PooledConnection handler = new PooledConnection(connection, owned);
+            handler.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class[]{Connection.class}, handler);
+            owned.incrementAndGet();
+            return handler.proxy;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private boolean isValid(IdleConnection candidate) {
+        if (System.currentTimeMillis() - candidate.since < validationInterval) {
+            return true;
+        }
+        try {
+            if (validationQuery == null) {
+                return candidate.connection.isValid(5);
+            }
+            try (Statement statement = candidate.connection.createStatement()) {
+                statement.execute(validationQuery);
+            }
+            if (!candidate.connection.getAutoCommit()) {
+                candidate.connection.rollback();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(IdleConnection connection) {
+        Connection real = connection.connection;
+        try {
+            if (real.isClosed()) {
+                return;
+            }
+            //未提交的事务一律回滚, 恢复为自动提交后再放回空闲队列
+            if (!real.getAutoCommit()) {
+                real.rollback();
+                real.setAutoCommit(true);
+            }
+            if (!closed && idleCount.incrementAndGet() <= maxIdle) {
+                idle.offerFirst(connection.idle());
+                //与close并发归还时, 放入后由这里关闭
+                if (closed) {
+                    closeIdle();
+                }
+                return;
+            }
+            idleCount.decrementAndGet();
+            closeQuietly(real);
+        } catch (SQLException e) {
+            closeQuietly(real);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 关闭空闲连接并停止借出, 使用中的连接在归还时关闭
+     */
+    void close() {
+        closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        IdleConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            closeQuietly(connection.connection);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credentials are configured by SQL.Builder.auth");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(getClass().getName() + " is not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private static final class IdleConnection {
+
+        private final Connection connection;
+        private final StatementCache statements;
+        private final long since = System.currentTimeMillis();
+
+        private IdleConnection(Connection connection, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+        }
+
+        private IdleConnection idle() {
+            return new IdleConnection(connection, statements);
+        }
+    }
+
+    /**
+     * 一个物理连接上空闲的PreparedStatement, 按SQL与prepare参数区分, 超出容量时关闭最久未使用的.
+     * 取出的语句从缓存中移除, 同一条SQL同时使用时另行prepare, 归还时已有同key的语句则直接关闭.
+     * 淘汰的语句在锁外关闭, MySQL服务端预处理语句的关闭需要一次网络往返.
+     */
+    private static final class StatementCache {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, PreparedStatement> statements;
+        private PreparedStatement evicted;
+
+        private StatementCache(int size) {
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= size) {
+                        return false;
+                    }
+                    evicted = eldest.getValue();
+                    return true;
+                }
+            };
+        }
+
+        private PreparedStatement take(String key) {
+            lock.lock();
+            try {
+                return statements.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean offer(String key, PreparedStatement statement) {
+            PreparedStatement eldest;
+            boolean offered;
+            lock.lock();
+            try {
+                offered = statements.putIfAbsent(key, statement) == null;
+                eldest = evicted;
+                evicted = null;
+            } finally {
+                lock.unlock();
+            }
+            if (eldest != null) {
+                closeQuietly(eldest);
+            }
+            return offered;
+        }
+
+        private static String key(Object[] args) {
+            //prepareStatement的各个重载: (sql), (sql, autoGeneratedKeys), (sql, int[]), (sql, String[]), (sql, type, concurrency[, holdability])
+            StringBuilder key = new StringBuilder((String) args[0]);
+            for (int i = 1; i < args.length; i++) {
+                key.append('\0');
+                if (args[i] instanceof int[]) {
+                    key.append("i").append(Arrays.toString((int[]) args[i]));
+                } else if (args[i] instanceof String[]) {
+                    key.append("s").append(Arrays.toString((String[]) args[i]));
+                } else {
+                    key.append(args[i]);
+                }
+            }
+            return key.toString();
+        }
+    }
+
+    /**
+     * 交给调用方的PreparedStatement代理, close时清理参数放回缓存.
+     * fetchSize/maxRows/queryTimeout在归还时恢复原值, 其他改变语句状态的调用使其不再复用.
+     */
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final StatementCache cache;
+        private final String key;
+        private final PreparedStatement real;
+        private final Connection connection;
+        private boolean closed;
+        private boolean reusable = true;
+        private Integer fetchSize;
+        private Integer maxRows;
+        private Integer queryTimeout;
+
+        private CachedStatement(StatementCache cache, String key, PreparedStatement real, Connection connection) {
+            this.cache = cache;
+            this.key = key;
+            this.real = real;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release();
+                    }
+                    return null;
+
+                case "isClosed":
+                    return closed || real.isClosed();
+
+                case "getConnection":
+                    return connection;
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                case "setFetchSize":
+                    if (fetchSize == null) {
+                        fetchSize = real.getFetchSize();
+                    }
+                    break;
+
+                case "setMaxRows":
+                    if (maxRows == null) {
+                        maxRows = real.getMaxRows();
+                    }
+                    break;
+
+                case "setQueryTimeout":
+                    if (queryTimeout == null) {
+                        queryTimeout = real.getQueryTimeout();
+                    }
+                    break;
+
+                case "closeOnCompletion":
+                case "setCursorName":
+                case "setEscapeProcessing":
+                case "setFetchDirection":
+                case "setLargeMaxRows":
+                case "setMaxFieldSize":
+                case "setPoolable":
+                    reusable = false;
+                    break;
+
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return method.invoke(real, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void release() throws SQLException {
+            if (!reusable || real.isClosed()) {
+                real.close();
+                return;
+            }
+            try {
+                real.clearParameters();
+                real.clearBatch();
+                if (fetchSize != null) {
+                    real.setFetchSize(fetchSize);
+                }
+                if (maxRows != null) {
+                    real.setMaxRows(maxRows);
+                }
+                if (queryTimeout != null) {
+                    real.setQueryTimeout(queryTimeout);
+                }
+            } catch (SQLException e) {
+                real.close();
+                throw e;
+            }
+            if (!cache.offer(key, real)) {
+                real.close();
+            }
+        }
+    }
+
+    /**
+     * 交给调用方的连接代理, close时归还到池中而不是关闭物理连接
+     */
+    private final class PooledConnection implements InvocationHandler {
+
+        private final IdleConnection connection;
+        private final Connection real;
+        //借出线程的计数, 连接可能在其他线程归还
+        private final AtomicInteger owner;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Connection proxy;
+
+        private PooledConnection(IdleConnection connection, AtomicInteger owner) {
+            this.connection = connection;
+            this.real = connection.connection;
+            this.owner = owner;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        owner.decrementAndGet();
+                        release(connection);
+                    }
+                    return null;
+
+                case "isClosed":
+                    return closed.get() || real.isClosed();
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                default:
+                    break;
+            }
+
+            if (closed.get()) {
+                throw new SQLException("Connection is closed");
+            }
+            if (connection.statements != null && "prepareStatement".equals(method.getName())) {
+                return prepareStatement(method, args);
+            }
+            try {
+                return method.invoke(real, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private PreparedStatement prepareStatement(Method method, Object[] args) throws Throwable {
+            StatementCache cache = connection.statements;
+            String key = StatementCache.key(args);
+            PreparedStatement statement = cache.take(key);
+            if (statement == null || statement.isClosed()) {
+                try {
+                    statement = (PreparedStatement) method.invoke(real, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class[]{PreparedStatement.class}, new CachedStatement(cache, key, statement, proxy));
+        }
+    }
+}
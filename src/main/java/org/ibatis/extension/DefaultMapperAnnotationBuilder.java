@@ -27,6 +27,8 @@ import org.apache.ibatis.session.RowBounds;
 import org.apache.ibatis.type.JdbcType;
 import org.apache.ibatis.type.TypeHandler;
 import org.apache.ibatis.type.UnknownTypeHandler;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Cacheable;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -47,13 +49,16 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
     private final Configuration configuration;
     private final MapperBuilderAssistant assistant;
     private final Class<?> type;
-    private final Driver driver;
+    private final TagParser tagParser;
+    private final Integer streamFetchSize;
+    private boolean entityCache;
 
-    DefaultMapperAnnotationBuilder(Configuration configuration, Class<?> type, Driver driver) {
+    DefaultMapperAnnotationBuilder(Configuration configuration, Class<?> type, TagParser tagParser, Integer streamFetchSize) {
         super(configuration, type);
         this.configuration = configuration;
         this.type = type;
-        this.driver = driver;
+        this.tagParser = tagParser;
+        this.streamFetchSize = streamFetchSize;
         this.assistant = getSuperAssistant();
     }
 
@@ -100,6 +105,7 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
 
     private void parsePendingMethods() {
         Collection<MethodResolver> incompleteMethods = configuration.getIncompleteMethods();
+        //Configuration.buildAllStatements也在该集合上synchronized, 必须使用同一个监视器; 块内没有IO, 不会长时间占住载体线程
         synchronized (incompleteMethods) {
             Iterator<MethodResolver> iter = incompleteMethods.iterator();
             while (iter.hasNext()) {
@@ -143,6 +149,21 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
             Long flushInterval = cacheDomain.flushInterval() == 0 ? null : cacheDomain.flushInterval();
             Properties props = convertToProperties(cacheDomain.properties());
             assistant.useNewCache(cacheDomain.implementation(), cacheDomain.eviction(), flushInterval, size, cacheDomain.readWrite(), cacheDomain.blocking(), props);
+            return;
+        }
+
+        //同一实体的mapper共用一个EntityCache, 以实体类名为缓存id
+        Cacheable cacheable = type.getAnnotation(Cacheable.class);
+        Bind bind = type.getAnnotation(Bind.class);
+        if (cacheable != null && bind != null) {
+            String cacheId = bind.value().getName();
+            //解析在DefaultMapperRegistry的configurationLock内进行, 检查与添加之间不会有其他mapper插入
+            if (!configuration.hasCache(cacheId)) {
+                Field idField = Util.toIdField(bind);
+                configuration.addCache(new EntityCache(bind.value(), idField == null ? null : idField.getName(), configuration, cacheable.size()));
+            }
+            assistant.useCacheRef(cacheId);
+            entityCache = true;
         }
     }
 
@@ -208,12 +229,43 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
         List<ResultMapping> resultMappings = new ArrayList<>();
         applyConstructorArgs(args, returnType, resultMappings);
         applyResults(results, returnType, resultMappings);
+        applyColumnMappings(returnType, resultMappings);
         Discriminator disc = applyDiscriminator(resultMapId, returnType, discriminator);
         // TODO add AutoMappingBehaviour
         assistant.addResultMap(resultMapId, returnType, null, disc, resultMappings, null);
         createDiscriminatorResultMaps(resultMapId, returnType, discriminator);
     }
 
+    private void applyColumnMappings(Class<?> resultType, List<ResultMapping> resultMappings) {
+        Bind bind = type.getAnnotation(Bind.class);
+        if (bind == null || bind.value() != resultType) {
+            return;
+        }
+        Set<String> mappedProperties = resultMappings.stream()
+                .map(ResultMapping::getProperty)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Util.toColumnMappingMap(bind).forEach((field, columnMapping) -> {
+            if (!mappedProperties.contains(field.getName())) {
+                resultMappings.add(assistant.buildResultMapping(
+                        resultType,
+                        field.getName(),
+                        columnMapping.value(),
+                        field.getType(),
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        new ArrayList<>(),
+                        null,
+                        null,
+                        false));
+            }
+        });
+    }
+
     private void createDiscriminatorResultMaps(String resultMapId, Class<?> resultType, TypeDiscriminator discriminator) {
         if (discriminator != null) {
             for (Case c : discriminator.cases()) {
@@ -249,16 +301,21 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
     }
 
     void parseStatement(Method method) {
-        final Class<?> parameterTypeClass = getParameterType(method);
+        //批量@omit/@upsert按实体生成语句, 参数类型为实体本身
+        final Bind bulkBind = Util.isBulkOmit(method) ? type.getAnnotation(Bind.class) : null;
+        final Class<?> parameterTypeClass = bulkBind != null ? bulkBind.value() : getParameterType(method);
         final LanguageDriver languageDriver = getLanguageDriver(method);
 
         getAnnotationWrapper(method, true, statementAnnotationTypes).ifPresent(statementAnnotation -> {
-            final SqlSource sqlSource = buildSqlSource(statementAnnotation.getAnnotation(), parameterTypeClass, languageDriver, method);
             final SqlCommandType sqlCommandType = statementAnnotation.getSqlCommandType();
+            SqlSource sqlSource = buildSqlSource(statementAnnotation.getAnnotation(), parameterTypeClass, languageDriver, method);
+            if (bulkBind != null && SqlCommandType.INSERT.equals(sqlCommandType)) {
+                sqlSource = new MultiRowSqlSource(configuration, sqlSource);
+            }
             final Options options = getAnnotationWrapper(method, false, Options.class).map(x -> (Options) x.getAnnotation()).orElse(null);
             final String mappedStatementId = type.getName() + "." + method.getName();
 
-            final KeyGenerator keyGenerator;
+            KeyGenerator keyGenerator;
             String keyProperty = null;
             String keyColumn = null;
             if (SqlCommandType.INSERT.equals(sqlCommandType) || SqlCommandType.UPDATE.equals(sqlCommandType)) {
@@ -274,6 +331,17 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
                     keyProperty = options.keyProperty();
                     keyColumn = options.keyColumn();
                 }
+
+                //开启id回写; @upsert更新已有行时驱动不返回该行的id, 不回写
+                Bind bind = type.getAnnotation(Bind.class);
+                Field idField;
+                if (selectKey == null && Util.isUpsert(method)) {
+                    keyGenerator = NoKeyGenerator.INSTANCE;
+                } else if (selectKey == null && SqlCommandType.INSERT.equals(sqlCommandType) && bind != null && (idField = Util.toIdField(bind)) != null) {
+                    keyGenerator = Util.isBulkOmit(method) ? MultiRowKeyGenerator.INSTANCE : Jdbc3KeyGenerator.INSTANCE;
+                    keyProperty = idField.getName();
+                    keyColumn = Util.toColumnName(idField);
+                }
             } else {
                 keyGenerator = NoKeyGenerator.INSTANCE;
             }
@@ -283,7 +351,8 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
             StatementType statementType = StatementType.PREPARED;
             ResultSetType resultSetType = configuration.getDefaultResultSetType();
             boolean isSelect = sqlCommandType == SqlCommandType.SELECT;
-            boolean flushCache = !isSelect;
+            //EntityCache由EntityCacheInterceptor按id淘汰, @omit写入不清空整个缓存
+            boolean flushCache = !isSelect && !(entityCache && Util.isOmit(method));
             boolean useCache = isSelect;
             if (options != null) {
                 if (Options.FlushCachePolicy.TRUE.equals(options.flushCache())) {
@@ -299,6 +368,10 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
                     resultSetType = options.resultSetType();
                 }
             }
+            //流式查询未通过@Options指定fetchSize时使用Builder的设置
+            if (isSelect && fetchSize == null && Util.isStreaming(method)) {
+                fetchSize = streamFetchSize;
+            }
 
             String resultMapId = null;
             if (isSelect) {
@@ -334,6 +407,19 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
                     languageDriver,
                     // ResultSets
                     options != null ? nullOrEmpty(options.resultSets()) : null);
+
+            //只有主键等值查询的结果可以按id淘汰, 其他查询结果在任何写入后失效
+            if (entityCache && isSelect && tagParser.isIdLookup(method)) {
+                ((EntityCache) configuration.getCache(type.getAnnotation(Bind.class).value().getName())).addIdLookup(mappedStatementId);
+            }
+
+            //@AsyncAppend的插入另外注册多行语句供后台线程成批执行, 写入时实体可能已交还调用方, 不回写id
+            if (Util.isAppend(type, method)) {
+                assistant.addMappedStatement(mappedStatementId + Appender.STATEMENT_SUFFIX, new MultiRowSqlSource(configuration, sqlSource),
+                        statementType, sqlCommandType, null, timeout, null, parameterTypeClass, null, null, resultSetType,
+                        flushCache, false, false, NoKeyGenerator.INSTANCE, null, null,
+                        statementAnnotation.getDatabaseId(), languageDriver, null);
+            }
         });
     }
 
@@ -363,8 +449,9 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
     }
 
     private Class<?> getReturnType(Method method) {
-        Class<?> returnType = method.getReturnType();
-        Type resolvedReturnType = TypeParameterResolver.resolveReturnType(method, type);
+        //CompletableFuture<T>按T解析结果类型
+        Type resolvedReturnType = Util.unwrapAsync(TypeParameterResolver.resolveReturnType(method, type));
+        Class<?> returnType = Util.isAsync(method) ? Util.toRawType(resolvedReturnType) : method.getReturnType();
         if (resolvedReturnType instanceof Class) {
             returnType = (Class<?>) resolvedReturnType;
             if (returnType.isArray()) {
@@ -380,7 +467,8 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
         } else if (resolvedReturnType instanceof ParameterizedType) {
             ParameterizedType parameterizedType = (ParameterizedType) resolvedReturnType;
             Class<?> rawType = (Class<?>) parameterizedType.getRawType();
-            if (Collection.class.isAssignableFrom(rawType) || Cursor.class.isAssignableFrom(rawType)) {
+            if (Collection.class.isAssignableFrom(rawType) || Cursor.class.isAssignableFrom(rawType)
+                    || Stream.class.equals(rawType)) {
                 Type[] actualTypeArguments = parameterizedType.getActualTypeArguments();
                 if (actualTypeArguments != null && actualTypeArguments.length == 1) {
                     Type returnTypeParameter = actualTypeArguments[0];
@@ -601,7 +689,7 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
         String databaseId = configuration.getDatabaseId();
         Map<String, AnnotationWrapper> statementAnnotations = targetTypes.stream()
                 .flatMap(x -> Arrays.stream(method.getAnnotationsByType(x))).map(
-                        (Function<Annotation, AnnotationWrapper>) annotation -> new AnnotationWrapper(driver, method, annotation))
+                        (Function<Annotation, AnnotationWrapper>) annotation -> new AnnotationWrapper(tagParser, method, annotation))
                 .collect(Collectors.toMap(AnnotationWrapper::getDatabaseId, x -> x, (existing, duplicate) -> {
                     throw new BuilderException(String.format("Detected conflicting annotations '%s' and '%s' on '%s'.",
                             existing.getAnnotation(), duplicate.getAnnotation(),
@@ -629,9 +717,9 @@ final class DefaultMapperAnnotationBuilder extends MapperAnnotationBuilder {
         private final String databaseId;
         private final SqlCommandType sqlCommandType;
 
-        AnnotationWrapper(Driver driver, Method method, Annotation annotation) {
+        AnnotationWrapper(TagParser tagParser, Method method, Annotation annotation) {
             super();
-            this.annotation = new TagParser(driver).replaceTags(method, annotation);
+            this.annotation = tagParser.replaceTags(method, annotation);
 
             if (annotation instanceof Select) {
                 databaseId = ((Select) annotation).databaseId();
@@ -9,31 +9,99 @@ import org.ibatis.extension.annotations.Bind;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 final class DefaultMapperRegistry extends MapperRegistry {
 
     private final Driver driver;
+    //标签展开与主键查询的识别结果随Configuration存在, 不在进程内全局持有mapper的Method
+    private final TagParser tagParser;
     private final Configuration config;
+    private final Integer streamFetchSize;
+    private final EntityCacheInterceptor cacheInterceptor = new EntityCacheInterceptor();
+    private final Map<Class<?>, MapperProxyFactory<?>> registeredMappers = new ConcurrentHashMap<>();
+    //注册期间会建表, 用ReentrantLock而不是synchronized, 虚拟线程在等待或执行IO时不会占住载体线程
+    private final Map<Class<?>, ReentrantLock> registrationLocks = new ConcurrentHashMap<>();
+    //Configuration不是线程安全的, 解析statement仍需全局互斥
+    private final ReentrantLock configurationLock = new ReentrantLock();
 
-    public DefaultMapperRegistry(Configuration config, Driver driver) {
+    public DefaultMapperRegistry(Configuration config, Driver driver, Integer streamFetchSize) {
         super(config);
         this.config = config;
         this.driver = driver;
+        this.tagParser = new TagParser(driver);
+        this.streamFetchSize = streamFetchSize;
         config.setDefaultScriptingLanguage(DefaultLanguageDriver.class);
+        config.addInterceptor(new PrimitiveResultInterceptor());
+        config.addInterceptor(cacheInterceptor);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> T getMapper(Class<T> type, SqlSession session) {
-        synchronized (this) {
-            if (!hasMapper(type)) {
-                Bind bind;
-                if ((bind = type.getAnnotation(Bind.class)) == null) {
-                    throw new IllegalStateException("Missing @Bind: " + type.getName());
-                }
+        MapperProxyFactory<T> factory = (MapperProxyFactory<T>) registeredMappers.get(type);
+        if (factory == null) {
+            factory = register(type, session);
+        }
+        return factory.newInstance(session);
+    }
+
+    TagParser tagParser() {
+        return tagParser;
+    }
+
+    /**
+     * mapper是否已完成注册(建表与statement解析)
+     */
+    boolean isRegistered(Class<?> type) {
+        return registeredMappers.containsKey(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MapperProxyFactory<T> register(Class<T> type, SqlSession session) {
+        //只串行化同一个mapper的首次注册, 已注册的mapper无锁查找
+        ReentrantLock lock = Util.computeIfAbsent(registrationLocks, type, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            MapperProxyFactory<T> factory = (MapperProxyFactory<T>) registeredMappers.get(type);
+            if (factory != null) {
+                return factory;
+            }
+
+            Bind bind;
+            if ((bind = type.getAnnotation(Bind.class)) == null) {
+                throw new IllegalStateException("Missing @Bind: " + type.getName());
+            }
+
+            if (config.getReflectorFactory() instanceof EntityReflectorFactory) {
+                ((EntityReflectorFactory) config.getReflectorFactory()).register(bind.value());
+            }
+
+            configurationLock.lock();
+            try {
+                factory = (MapperProxyFactory<T>) knownMappers().get(type);
+            } finally {
+                configurationLock.unlock();
+            }
+            if (factory == null) {
                 driver.generateTable(bind, type, session);
-                addMapper(type);
+                configurationLock.lock();
+                try {
+                    if (!hasMapper(type)) {
+                        addMapper(type);
+                    }
+                    factory = (MapperProxyFactory<T>) knownMappers().get(type);
+                } finally {
+                    configurationLock.unlock();
+                }
             }
-            return super.getMapper(type, session);
+
+            registeredMappers.put(type, factory);
+            registrationLocks.remove(type);
+            return factory;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -52,21 +120,27 @@ final class DefaultMapperRegistry extends MapperRegistry {
     public <T> void addMapper(Class<T> type) {
 
         if (type.isInterface()) {
-            if (hasMapper(type)) {
-                throw new BindingException("Type " + type + " is already known to the MapperRegistry.");
-            }
+            //直接调用Configuration.addMapper时同样与getMapper中的注册互斥
+            configurationLock.lock();
+            try {
+                if (hasMapper(type)) {
+                    throw new BindingException("Type " + type + " is already known to the MapperRegistry.");
+                }
 
-            Map<Class<?>, MapperProxyFactory<?>> knownMappers = knownMappers();
+                Map<Class<?>, MapperProxyFactory<?>> knownMappers = knownMappers();
 
-            boolean loadCompleted = false;
-            try {
-                knownMappers.put(type, new MapperProxyFactory<>(type));
-                new DefaultMapperAnnotationBuilder(config, type, driver).parse();
-                loadCompleted = true;
-            } finally {
-                if (!loadCompleted) {
-                    knownMappers.remove(type);
+                boolean loadCompleted = false;
+                try {
+                    knownMappers.put(type, new MapperProxyFactory<>(type));
+                    new DefaultMapperAnnotationBuilder(config, type, tagParser, streamFetchSize).parse();
+                    loadCompleted = true;
+                } finally {
+                    if (!loadCompleted) {
+                        knownMappers.remove(type);
+                    }
                 }
+            } finally {
+                configurationLock.unlock();
             }
         }
     }
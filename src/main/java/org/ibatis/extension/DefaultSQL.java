@@ -1,21 +1,63 @@
 package org.ibatis.extension;
 
-import org.apache.ibatis.annotations.Delete;
-import org.apache.ibatis.annotations.Insert;
-import org.apache.ibatis.annotations.Select;
-import org.apache.ibatis.annotations.Update;
-import org.apache.ibatis.reflection.ExceptionUtil;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.exceptions.ExceptionFactory;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
+import org.ibatis.extension.annotations.Bind;
 
+import javax.sql.DataSource;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 final class DefaultSQL implements SQL {
 
     private final SqlSessionFactory sqlSessionFactory;
+    private final DataSource readDataSource;
+    private final Driver driver;
+    private final TagParser tagParser;
+    private final int batchSize;
+    private final ThreadLocal<Scope> localScope = new ThreadLocal<>();
+    private final Map<Class<?>, Map<Method, MapperMethodInvoker>> dispatchTables = new ConcurrentHashMap<>();
+    private final Map<Method, InsertChunker> insertChunks = new ConcurrentHashMap<>();
+    private final long maxPacketBytes;
+    private final boolean generateMappers;
+    private final Map<Class<?>, Optional<Object>> generatedMappers = new ConcurrentHashMap<>();
+    private final IdentityMap identityMap;
+    private final Metrics metrics;
+    private final AsyncDispatcher async;
+    private final Map<Class<?>, Appender> appenders = new ConcurrentHashMap<>();
+    //创建Appender与close互斥, close之后不再创建新的Appender(及其后台线程和MBean)
+    private final ReentrantLock appendersLock = new ReentrantLock();
+    private boolean closed;
 
-    DefaultSQL(SqlSessionFactory sqlSessionFactory) {
+    DefaultSQL(SqlSessionFactory sqlSessionFactory, DataSource readDataSource, Driver driver, int batchSize, long maxPacketBytes,
+               boolean generateMappers, IdentityMap identityMap, Metrics metrics, Executor asyncExecutor, int asyncThreads) {
         this.sqlSessionFactory = sqlSessionFactory;
+        this.readDataSource = readDataSource;
+        this.driver = driver;
+        this.tagParser = ((DefaultMapperRegistry) sqlSessionFactory.getConfiguration().getMapperRegistry()).tagParser();
+        this.batchSize = batchSize;
+        this.maxPacketBytes = maxPacketBytes;
+        this.generateMappers = generateMappers;
+        this.identityMap = identityMap;
+        this.metrics = metrics;
+        this.async = new AsyncDispatcher(this, asyncExecutor, asyncThreads, batchSize);
     }
 
     @Override
@@ -24,25 +66,378 @@ final class DefaultSQL implements SQL {
         if (clazz == null || !clazz.isInterface()) {
             throw new IllegalStateException("Mapper cannot be null and must be an interface!");
         }
+        Map<Method, MapperMethodInvoker> table = Util.computeIfAbsent(dispatchTables, clazz, MapperMethodInvoker::table);
+        if (generateMappers) {
+            //生成的实现类不持有状态, 每个mapper接口只生成并实例化一次; 无法生成时退回到Proxy
+            Optional<Object> generated = Util.computeIfAbsent(generatedMappers, clazz, k -> generate(k, table));
+            if (generated.isPresent()) {
+                return (T) generated.get();
+            }
+        }
         return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, (proxy, method, args) -> {
-            SqlSession session = sqlSessionFactory.openSession();
+            MapperMethodInvoker invoker = table.get(method);
+            if (invoker == null) {
+                //Object的方法不访问数据库
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return clazz.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                }
+            }
+            if (invoker.isDefault()) {
+                return invoker.invokeDefault(proxy, args);
+            }
+            return invoke(clazz, invoker, args);
+        });
+    }
 
-            Object obj = session.getMapper(clazz);
+    @SuppressWarnings("unchecked")
+    private Optional<Object> generate(Class<?> clazz, Map<Method, MapperMethodInvoker> table) {
+        List<Method> methods = MapperClassGenerator.methods(clazz);
+        Function<Object[], Object>[] invokers = new Function[methods.size()];
+        for (int i = 0; i < invokers.length; i++) {
+            MapperMethodInvoker invoker = table.get(methods.get(i));
+            invokers[i] = args -> invoke(clazz, invoker, args);
+        }
+        return Optional.ofNullable(MapperClassGenerator.generate(clazz, methods, invokers));
+    }
 
-            try {
-                Object val = method.invoke(obj, args);
-                if (!method.isAnnotationPresent(Select.class)) {
-                    session.commit();
+    private Object invoke(Class<?> clazz, MapperMethodInvoker invoker, Object[] args) {
+        //返回CompletableFuture的方法在后台线程上执行, 不加入当前线程的事务
+        if (invoker.async) {
+            return async.submit(clazz, invoker, args);
+        }
+        //@AsyncAppend的插入在事务作用域外只放入队列
+        if (invoker.append && localScope.get() == null) {
+            appender(clazz).append(invoker, args[0]);
+            return null;
+        }
+        return invokeNow(clazz, invoker, args);
+    }
+
+    /**
+     * 已创建的Appender在close后自行拒绝append; 尚未创建的在close后直接拒绝
+     */
+    private Appender appender(Class<?> clazz) {
+        Appender appender = appenders.get(clazz);
+        if (appender != null) {
+            return appender;
+        }
+        appendersLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("SQL is closed");
+            }
+            return Util.computeIfAbsent(appenders, clazz, k -> new Appender(k, sqlSessionFactory, driver, maxPacketBytes, metrics));
+        } finally {
+            appendersLock.unlock();
+        }
+    }
+
+    Object invokeNow(Class<?> clazz, MapperMethodInvoker invoker, Object[] args) {
+        if (metrics == null) {
+            return doInvoke(clazz, invoker, args);
+        }
+        //耗时不含取连接的等待, 等待时间由连接池单独记录
+        long checkout = Metrics.checkoutNanos();
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            Object val = doInvoke(clazz, invoker, args);
+            error = false;
+            return val;
+        } finally {
+            long elapsed = System.nanoTime() - start - (Metrics.checkoutNanos() - checkout);
+            metrics.statement(invoker.statement).record(elapsed, error);
+        }
+    }
+
+    private Object doInvoke(Class<?> clazz, MapperMethodInvoker invoker, Object[] args) {
+        //事务作用域内复用当前线程的session, 由transaction/batch统一提交
+        Scope scope = localScope.get();
+        if (scope != null) {
+            if (invoker.streaming) {
+                return invoker.stream(scope.session, args, null);
+            }
+            Object val;
+            if (invoker.bulk) {
+                val = executeBulk(scope, clazz, invoker, args[0]);
+            } else {
+                val = invoker.execute(scope.session, args);
+                if (!invoker.select) {
+                    scope.written(1);
                 }
-                return val;
+            }
+            //事务内的写入在提交后才对identityMap可见
+            if (identityMap != null && invoker.write) {
+                scope.committed.add(() -> written(invoker, args));
+            }
+            return val;
+        }
+
+        //主键等值查询先查identityMap, 命中时不访问数据库
+        boolean idLookup = identityMap != null && invoker.select && args != null && tagParser.isIdLookup(invoker.method);
+        if (idLookup) {
+            Object cached = identityMap.get(invoker.entityType, args[0]);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        //多行插入每块只有一条语句, 复用PreparedStatement即可; 批量更新走驱动的批量执行器
+        Scope bulkScope = null;
+        SqlSession session;
+        if (invoker.bulk) {
+            bulkScope = new Scope(sqlSessionFactory.openSession(invoker.insert ? ExecutorType.REUSE : driver.batchExecutorType), true);
+            session = bulkScope.session;
+        } else if (readDataSource != null && invoker.select && isRegistered(clazz)) {
+            session = openReadSession();
+        } else {
+            session = sqlSessionFactory.openSession();
+        }
+
+        if (invoker.streaming) {
+            //session交给游标, 由Stream/Cursor关闭时释放
+            try {
+                return invoker.stream(session, args, session);
             } catch (Throwable ex) {
-                if (method.isAnnotationPresent(Insert.class) || method.isAnnotationPresent(Delete.class) || method.isAnnotationPresent(Update.class)) {
-                    session.rollback();
-                }
-                throw ExceptionUtil.unwrapThrowable(ex);
-            } finally {
                 session.close();
+                throw ex;
             }
-        });
+        }
+
+        try {
+            Object val = invoker.bulk ? executeBulk(bulkScope, clazz, invoker, args[0]) : invoker.execute(session, args);
+            if (!invoker.select) {
+                session.commit();
+            }
+            if (idLookup) {
+                identityMap.load(invoker.entityType, val);
+            } else if (identityMap != null && invoker.write) {
+                written(invoker, args);
+            }
+            return val;
+        } catch (Throwable ex) {
+            if (invoker.write) {
+                session.rollback();
+            }
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @omit写入的实体就是库中的新值, 直接写入identityMap; 其他写语句无法确定影响的行, 清空该实体
+     */
+    private void written(MapperMethodInvoker invoker, Object[] args) {
+        if (invoker.entityType == null) {
+            return;
+        }
+        if (!invoker.omit) {
+            identityMap.clear(invoker.entityType);
+        } else if (invoker.bulk) {
+            for (Object entity : Util.toIterable(args[0])) {
+                identityMap.written(invoker.entityType, entity);
+            }
+        } else {
+            identityMap.written(invoker.entityType, args[0]);
+        }
+    }
+
+    /**
+     * 首次调用需要建表, 必须在写连接上完成注册后才能把查询交给只读连接池
+     */
+    private boolean isRegistered(Class<?> clazz) {
+        return ((DefaultMapperRegistry) sqlSessionFactory.getConfiguration().getMapperRegistry()).isRegistered(clazz);
+    }
+
+    /**
+     * 在只读连接池上打开session, 事务由连接自身的autoCommit决定
+     */
+    private SqlSession openReadSession() {
+        try {
+            return sqlSessionFactory.openSession(readDataSource.getConnection());
+        } catch (SQLException e) {
+            throw ExceptionFactory.wrapException("Error opening session.  Cause: " + e, e);
+        }
+    }
+
+    private Object executeBulk(Scope scope, Class<?> clazz, MapperMethodInvoker invoker, Object elements) {
+        //确保mapper已注册
+        invoker.resolve(scope.session);
+
+        Method method = invoker.method;
+        String statement = invoker.statement;
+        boolean insert = invoker.insert;
+
+        int rows = 0;
+        if (elements != null && insert) {
+            //按驱动的占位符上限、batchSize与语句字节数分块, 每块一条多行VALUES语句
+            List<?> list = Util.toList(elements);
+            InsertChunker chunker = Util.computeIfAbsent(insertChunks, method, m -> {
+                Bind bind = clazz.getAnnotation(Bind.class);
+                List<Field> fields = new ArrayList<>(Util.toInsertFields(bind));
+                //@upsert额外插入@Id列
+                Field id = Util.toIdField(bind);
+                if (Util.isUpsert(m) && id != null) {
+                    fields.add(id);
+                }
+                int chunk = Math.min(batchSize, driver.maxVariables / Math.max(1, fields.size()));
+                return new InsertChunker(sqlSessionFactory.getConfiguration(), bind.value(), fields, chunk, maxPacketBytes);
+            });
+            for (int i = 0, end; i < list.size(); i = end) {
+                end = chunker.end(list, i);
+                int count = scope.session.insert(statement, list.subList(i, end));
+                if (count != BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+                    rows += count;
+                }
+                rows += scope.written(1);
+            }
+            rows += scope.flush();
+        } else if (elements != null) {
+            for (Object element : Util.toIterable(elements)) {
+                int count = scope.session.update(statement, element);
+                if (count != BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+                    rows += count;
+                }
+                rows += scope.written(1);
+            }
+            rows += scope.flush();
+        }
+        return invoker.rowCountResult(rows);
+    }
+
+    @Override
+    public Map<Class<?>, CacheStatistics> cacheStatistics() {
+        //StrictMap会以短名重复登记同一个缓存, 按实体去重
+        Map<Class<?>, CacheStatistics> statistics = new HashMap<>();
+        for (Cache cache : sqlSessionFactory.getConfiguration().getCaches()) {
+            if (cache instanceof EntityCache) {
+                statistics.put(((EntityCache) cache).entityType(), ((EntityCache) cache).statistics());
+            }
+        }
+        return statistics;
+    }
+
+    @Override
+    public Map<String, StatementStatistics> statementStatistics() {
+        return metrics == null ? Collections.emptyMap() : metrics.statementStatistics();
+    }
+
+    @Override
+    public Map<String, LatencyStatistics> checkoutStatistics() {
+        return metrics == null ? Collections.emptyMap() : metrics.checkoutStatistics();
+    }
+
+    @Override
+    public Map<Class<?>, AppendStatistics> appendStatistics() {
+        Map<Class<?>, AppendStatistics> statistics = new HashMap<>();
+        appenders.forEach((mapper, appender) -> statistics.put(mapper, appender.statistics()));
+        return statistics;
+    }
+
+    @Override
+    public void flush() {
+        for (Appender appender : appenders.values()) {
+            appender.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        appendersLock.lock();
+        try {
+            closed = true;
+        } finally {
+            appendersLock.unlock();
+        }
+        for (Appender appender : appenders.values()) {
+            appender.close();
+        }
+        async.close();
+        if (metrics != null) {
+            metrics.close();
+        }
+        DataSource dataSource = sqlSessionFactory.getConfiguration().getEnvironment().getDataSource();
+        for (DataSource pool : new DataSource[]{dataSource, readDataSource}) {
+            if (pool instanceof ConnectionPool) {
+                ((ConnectionPool) pool).close();
+            }
+        }
+    }
+
+    @Override
+    public <R> R transaction(Function<SQL, R> action) {
+        return execute(ExecutorType.SIMPLE, false, action);
+    }
+
+    @Override
+    public <R> R batch(Function<SQL, R> action) {
+        return execute(driver.batchExecutorType, true, action);
+    }
+
+    private <R> R execute(ExecutorType executorType, boolean batch, Function<SQL, R> action) {
+        //嵌套调用时并入外层事务
+        if (localScope.get() != null) {
+            return action.apply(this);
+        }
+
+        Scope scope = new Scope(sqlSessionFactory.openSession(executorType), batch);
+        localScope.set(scope);
+        try {
+            R result = action.apply(this);
+            scope.flush();
+            scope.session.commit();
+            scope.committed.forEach(Runnable::run);
+            return result;
+        } catch (Throwable ex) {
+            scope.session.rollback();
+            throw ex;
+        } finally {
+            localScope.remove();
+            scope.session.close();
+        }
+    }
+
+    private final class Scope {
+
+        private final SqlSession session;
+        private final boolean batch;
+        private final List<Runnable> committed = new ArrayList<>();
+        private int pending;
+
+        private Scope(SqlSession session, boolean batch) {
+            this.session = session;
+            this.batch = batch;
+        }
+
+        /**
+         * 记录写入的语句数, 批量模式下每累计batchSize条执行一次flush, 返回flush影响的行数
+         */
+        private int written(int count) {
+            if (batch && (pending += count) >= batchSize) {
+                return flush();
+            }
+            return 0;
+        }
+
+        private int flush() {
+            int rows = 0;
+            if (batch) {
+                pending = 0;
+                for (BatchResult result : session.flushStatements()) {
+                    for (int count : result.getUpdateCounts()) {
+                        if (count > 0) {
+                            rows += count;
+                        }
+                    }
+                }
+            }
+            return rows;
+        }
     }
 }
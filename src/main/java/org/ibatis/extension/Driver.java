@@ -1,19 +1,26 @@
 package org.ibatis.extension;
 
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.ibatis.extension.annotations.Bind;
 
 enum Driver {
 
-    MYSQL("com.mysql.cj.jdbc.Driver", new SQLTableGenerator()),
-    SQLITE("org.sqlite.JDBC", new SQLiteTableGenerator());
+    MYSQL("com.mysql.cj.jdbc.Driver", new SQLTableGenerator(), ExecutorType.BATCH, 65535),
+    //sqlite-jdbc的executeBatch只返回最后一个自增id, 批量模式改为单事务内复用PreparedStatement
+    //SQLITE_MAX_VARIABLE_NUMBER在3.32.0之前默认为999
+    SQLITE("org.sqlite.JDBC", new SQLiteTableGenerator(), ExecutorType.REUSE, 999);
 
     final String driverName;
+    final ExecutorType batchExecutorType;
+    final int maxVariables;
     private final TableGenerator generator;
 
-    Driver(String driverName, TableGenerator generator) {
+    Driver(String driverName, TableGenerator generator, ExecutorType batchExecutorType, int maxVariables) {
         this.driverName = driverName;
         this.generator = generator;
+        this.batchExecutorType = batchExecutorType;
+        this.maxVariables = maxVariables;
     }
 
     void generateTable(Bind bind, Class<?> mapper, SqlSession session) {
@@ -0,0 +1,261 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.reflection.Reflector;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按@Bind实体共享的二级缓存. 主键等值查询(由TagParser识别)的结果按实体id建立索引, 写入时可以只淘汰该id;
+ * 其他查询即使只返回一行, 新插入或更新的行也可能满足其条件, 与列表、聚合等结果一样在任何写入后都会失效. 不缓存空结果, 因此插入不会影响按id的查询.
+ * 实体在放入与取出时都会复制, 调用方修改返回的对象不会影响缓存.
+ */
+final class EntityCache implements Cache {
+
+    private final String id;
+    private final Class<?> entityType;
+    private final String idProperty;
+    private final Configuration configuration;
+    private final int size;
+
+    //访问顺序的LinkedHashMap即LRU, 所有读写都在lock上互斥; 不用synchronized, 虚拟线程等待时不会占住载体线程
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Object, CachedResult> entries;
+    private final Map<Object, Set<Object>> keysById = new HashMap<>();
+    private final Set<Object> sharedKeys = new HashSet<>();
+    //主键等值查询的statement id, 解析mapper时登记
+    private final Set<String> idLookups = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private volatile Reflector reflector;
+
+    EntityCache(Class<?> entityType, String idProperty, Configuration configuration, int size) {
+        this.id = entityType.getName();
+        this.entityType = entityType;
+        this.idProperty = idProperty;
+        this.configuration = configuration;
+        this.size = size;
+        this.entries = new LinkedHashMap<Object, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedResult> eldest) {
+                if (size() <= EntityCache.this.size) {
+                    return false;
+                }
+                unindex(eldest.getKey(), eldest.getValue());
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void putObject(Object key, Object value) {
+        //TransactionalCache提交时会以null回填未命中的key, 空结果一律不缓存
+        if (!(value instanceof List) || ((List<?>) value).isEmpty()) {
+            return;
+        }
+        List<?> list = (List<?>) value;
+        Object entityId = list.size() == 1 && isIdLookup(key) ? idOf(list.get(0)) : null;
+        CachedResult entry = new CachedResult(copy(list), entityId);
+        lock.lock();
+        try {
+            CachedResult previous = entries.put(key, entry);
+            if (previous != null) {
+                unindex(key, previous);
+            }
+            if (entityId != null) {
+                keysById.computeIfAbsent(entityId, k -> new HashSet<>()).add(key);
+            } else {
+                sharedKeys.add(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object getObject(Object key) {
+        CachedResult entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return copy(entry.value);
+    }
+
+    @Override
+    public Object removeObject(Object key) {
+        lock.lock();
+        try {
+            CachedResult entry = entries.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            unindex(key, entry);
+            return entry.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            invalidations.add(entries.size());
+            entries.clear();
+            keysById.clear();
+            sharedKeys.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getSize() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 实体更新后淘汰该id的结果与所有共享结果; 参数不是实体时无法确定id, 清空全部
+     */
+    void invalidate(Object entity) {
+        Object entityId = idOf(entity);
+        if (entityId == null) {
+            clear();
+            return;
+        }
+        lock.lock();
+        try {
+            Set<Object> keys = keysById.remove(entityId);
+            if (keys != null) {
+                for (Object key : keys) {
+                    entries.remove(key);
+                }
+                invalidations.add(keys.size());
+            }
+            invalidateShared();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 插入的行此前不可能按id命中缓存, 只需淘汰列表、聚合等共享结果
+     */
+    void invalidateShared() {
+        lock.lock();
+        try {
+            for (Object key : sharedKeys) {
+                entries.remove(key);
+            }
+            invalidations.add(sharedKeys.size());
+            sharedKeys.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 登记主键等值查询的statement, 其结果按id建立索引
+     */
+    void addIdLookup(String statementId) {
+        idLookups.add(statementId);
+    }
+
+    Class<?> entityType() {
+        return entityType;
+    }
+
+    SQL.CacheStatistics statistics() {
+        return new SQL.CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), getSize());
+    }
+
+    private void unindex(Object key, CachedResult entry) {
+        if (entry.entityId == null) {
+            sharedKeys.remove(key);
+            return;
+        }
+        Set<Object> keys = keysById.get(entry.entityId);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            keysById.remove(entry.entityId);
+        }
+    }
+
+    private boolean isIdLookup(Object key) {
+        if (idLookups.isEmpty() || !(key instanceof CacheKey)) {
+            return false;
+        }
+        try {
+            //BaseExecutor.createCacheKey最先放入的是MappedStatement的id
+            List<?> updates = (List<?>) Util.cachedField(CacheKey.class, "updateList").get(key);
+            return !updates.isEmpty() && idLookups.contains(updates.get(0));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read CacheKey", e);
+        }
+    }
+
+    private Object idOf(Object entity) {
+        if (idProperty == null || !entityType.isInstance(entity)) {
+            return null;
+        }
+        try {
+            return reflector().getGetInvoker(idProperty).invoke(entity, null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read @Id of " + entityType.getName(), e);
+        }
+    }
+
+    private List<Object> copy(List<?> list) {
+        List<Object> copy = new ArrayList<>(list.size());
+        for (Object element : list) {
+            copy.add(entityType.isInstance(element) ? Util.copyEntity(configuration, element) : element);
+        }
+        return copy;
+    }
+
+    private Reflector reflector() {
+        Reflector r = reflector;
+        if (r == null) {
+            reflector = r = configuration.getReflectorFactory().findForClass(entityType);
+        }
+        return r;
+    }
+
+    private static final class CachedResult {
+
+        private final List<Object> value;
+        private final Object entityId;
+
+        private CachedResult(List<Object> value, Object entityId) {
+            this.value = value;
+            this.entityId = entityId;
+        }
+    }
+}
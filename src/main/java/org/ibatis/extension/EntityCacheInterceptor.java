@@ -0,0 +1,81 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @omit的insert/update不清空整个{@link EntityCache}, 执行后只淘汰受影响的id.
+ * 提交前其他连接仍可能读到旧值并放入缓存, 因此提交后再淘汰一次.
+ * MyBatis只在openSession时包装一次Executor, 缓存mapper可能在已打开的session(如transaction作用域)中才注册,
+ * 因此总是包装; 没有EntityCache时只多一次instanceof判断.
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "commit", args = {boolean.class}),
+        @Signature(type = Executor.class, method = "rollback", args = {boolean.class}),
+        @Signature(type = Executor.class, method = "close", args = {boolean.class})
+})
+final class EntityCacheInterceptor implements Interceptor {
+
+    private final Map<Object, List<Runnable>> pending = new ConcurrentHashMap<>();
+
+    @Override
+    public Object plugin(Object target) {
+        return target instanceof Executor ? Plugin.wrap(target, this) : target;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object result = invocation.proceed();
+        Object executor = invocation.getTarget();
+        switch (invocation.getMethod().getName()) {
+            case "update":
+                MappedStatement ms = (MappedStatement) invocation.getArgs()[0];
+                if (ms.getCache() instanceof EntityCache && !ms.isFlushCacheRequired()) {
+                    Runnable eviction = eviction((EntityCache) ms.getCache(), ms.getSqlCommandType(), invocation.getArgs()[1]);
+                    eviction.run();
+                    pending.computeIfAbsent(executor, k -> new ArrayList<>()).add(eviction);
+                }
+                break;
+
+            case "commit":
+                List<Runnable> evictions = pending.isEmpty() ? null : pending.remove(executor);
+                if (evictions != null) {
+                    evictions.forEach(Runnable::run);
+                }
+                break;
+
+            default:
+                if (!pending.isEmpty()) {
+                    pending.remove(executor);
+                }
+                break;
+        }
+        return result;
+    }
+
+    private static Runnable eviction(EntityCache cache, SqlCommandType type, Object parameter) {
+        if (type == SqlCommandType.INSERT) {
+            return cache::invalidateShared;
+        }
+        if (parameter instanceof Iterable || parameter instanceof Object[]) {
+            return () -> {
+                for (Object entity : Util.toIterable(parameter)) {
+                    cache.invalidate(entity);
+                }
+            };
+        }
+        return () -> cache.invalidate(parameter);
+    }
+}
@@ -0,0 +1,32 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.reflection.ReflectionException;
+import org.apache.ibatis.reflection.factory.DefaultObjectFactory;
+
+/**
+ * 结果映射为每一行创建实体, @Bind实体通过缓存的构造器MethodHandle实例化,
+ * 不再每次查找并调用反射构造器.
+ */
+final class EntityObjectFactory extends DefaultObjectFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient EntityReflectorFactory reflectorFactory;
+
+    EntityObjectFactory(EntityReflectorFactory reflectorFactory) {
+        this.reflectorFactory = reflectorFactory;
+    }
+
+    @Override
+    public <T> T create(Class<T> type) {
+        EntityReflector reflector = reflectorFactory.findForEntity(type);
+        if (reflector == null || !reflector.canInstantiate()) {
+            return super.create(type);
+        }
+        try {
+            return type.cast(reflector.newInstance());
+        } catch (Throwable e) {
+            throw new ReflectionException("Error instantiating " + type + ". Cause: " + e, e);
+        }
+    }
+}
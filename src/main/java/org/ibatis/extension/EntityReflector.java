@@ -0,0 +1,153 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.reflection.Reflector;
+import org.apache.ibatis.reflection.invoker.GetFieldInvoker;
+import org.apache.ibatis.reflection.invoker.Invoker;
+import org.apache.ibatis.reflection.invoker.MethodInvoker;
+import org.apache.ibatis.reflection.invoker.SetFieldInvoker;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Bind实体的Reflector. 属性的读写与无参构造改为MethodHandle调用, 供参数绑定、结果映射与主键回写使用.
+ * 属性的解析规则仍由MyBatis的Reflector决定, 这里只替换其中的反射调用.
+ */
+final class EntityReflector extends Reflector {
+
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Map<String, Invoker> getInvokers = new HashMap<>();
+    private final Map<String, Invoker> setInvokers = new HashMap<>();
+    private final MethodHandle constructor;
+
+    EntityReflector(Class<?> type) {
+        super(type);
+
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            //所在模块未开放时保持反射调用
+            this.constructor = null;
+            return;
+        }
+
+        for (String name : getGetablePropertyNames()) {
+            Invoker invoker = super.getGetInvoker(name);
+            MethodHandle handle = toHandle(lookup, invoker, false);
+            if (handle != null) {
+                getInvokers.put(name, new Getter(handle.asType(GETTER), invoker.getType()));
+            }
+        }
+        for (String name : getSetablePropertyNames()) {
+            Invoker invoker = super.getSetInvoker(name);
+            MethodHandle handle = toHandle(lookup, invoker, true);
+            if (handle != null) {
+                setInvokers.put(name, new Setter(handle.asType(SETTER), invoker.getType()));
+            }
+        }
+
+        MethodHandle handle = null;
+        if (hasDefaultConstructor()) {
+            try {
+                handle = lookup.unreflectConstructor(getDefaultConstructor()).asType(MethodType.methodType(Object.class));
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        this.constructor = handle;
+    }
+
+    private static MethodHandle toHandle(MethodHandles.Lookup lookup, Invoker invoker, boolean setter) {
+        try {
+            //AmbiguousMethodInvoker等子类保留原有行为
+            if (invoker.getClass() == MethodInvoker.class) {
+                return lookup.unreflect((Method) Util.cachedField(MethodInvoker.class, "method").get(invoker));
+            } else if (!setter && invoker.getClass() == GetFieldInvoker.class) {
+                return lookup.unreflectGetter((Field) Util.cachedField(GetFieldInvoker.class, "field").get(invoker));
+            } else if (setter && invoker.getClass() == SetFieldInvoker.class) {
+                return lookup.unreflectSetter((Field) Util.cachedField(SetFieldInvoker.class, "field").get(invoker));
+            }
+        } catch (IllegalAccessException ignored) {
+        }
+        return null;
+    }
+
+    boolean canInstantiate() {
+        return constructor != null;
+    }
+
+    Object newInstance() throws Throwable {
+        return (Object) constructor.invokeExact();
+    }
+
+    @Override
+    public Invoker getGetInvoker(String propertyName) {
+        Invoker invoker = getInvokers.get(propertyName);
+        return invoker != null ? invoker : super.getGetInvoker(propertyName);
+    }
+
+    @Override
+    public Invoker getSetInvoker(String propertyName) {
+        Invoker invoker = setInvokers.get(propertyName);
+        return invoker != null ? invoker : super.getSetInvoker(propertyName);
+    }
+
+    private static final class Getter implements Invoker {
+
+        private final MethodHandle handle;
+        private final Class<?> type;
+
+        private Getter(MethodHandle handle, Class<?> type) {
+            this.handle = handle;
+            this.type = type;
+        }
+
+        @Override
+        public Object invoke(Object target, Object[] args) throws InvocationTargetException {
+            try {
+                return (Object) handle.invokeExact(target);
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        @Override
+        public Class<?> getType() {
+            return type;
+        }
+    }
+
+    private static final class Setter implements Invoker {
+
+        private final MethodHandle handle;
+        private final Class<?> type;
+
+        private Setter(MethodHandle handle, Class<?> type) {
+            this.handle = handle;
+            this.type = type;
+        }
+
+        @Override
+        public Object invoke(Object target, Object[] args) throws InvocationTargetException {
+            try {
+                handle.invokeExact(target, args[0]);
+                return null;
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        @Override
+        public Class<?> getType() {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.reflection.DefaultReflectorFactory;
+import org.apache.ibatis.reflection.Reflector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已注册的@Bind实体使用{@link EntityReflector}, 其余类型交给MyBatis默认实现
+ */
+final class EntityReflectorFactory extends DefaultReflectorFactory {
+
+    private final Map<Class<?>, EntityReflector> entityReflectors = new ConcurrentHashMap<>();
+
+    void register(Class<?> entity) {
+        Util.computeIfAbsent(entityReflectors, entity, EntityReflector::new);
+    }
+
+    EntityReflector findForEntity(Class<?> type) {
+        return entityReflectors.get(type);
+    }
+
+    @Override
+    public Reflector findForClass(Class<?> type) {
+        EntityReflector reflector = entityReflectors.get(type);
+        return reflector != null ? reflector : super.findForClass(type);
+    }
+}
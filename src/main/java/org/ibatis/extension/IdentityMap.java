@@ -0,0 +1,154 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.reflection.Reflector;
+import org.apache.ibatis.session.Configuration;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按@Bind实体与@Id保存的实体副本, 用于主键等值查询.
+ * 查询未命中时回填(不覆盖已有的较新值), @omit写入提交后直接写入新值, 其他写语句清空该实体的全部条目.
+ * 条目在ttl后过期, 超出容量时先清理过期条目, 仍超出则任意淘汰一部分.
+ */
+final class IdentityMap {
+
+    private final Configuration configuration;
+    private final int maxSize;
+    private final long ttl;
+    private final Map<Class<?>, Entities> entities = new ConcurrentHashMap<>();
+
+    IdentityMap(Configuration configuration, int maxSize, long ttl) {
+        this.configuration = configuration;
+        this.maxSize = maxSize;
+        //与nanoTime的差值比较, ttl不能超过long范围的一半
+        this.ttl = Math.min(ttl, Long.MAX_VALUE / 2);
+    }
+
+    Object get(Class<?> entityType, Object id) {
+        Entities map = entities.get(entityType);
+        if (map == null || id == null) {
+            return null;
+        }
+        Object key = map.key(id);
+        Entry entry = map.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() < 0) {
+            map.entries.remove(key, entry);
+            return null;
+        }
+        return Util.copyEntity(configuration, entry.entity);
+    }
+
+    /**
+     * 查询结果回填, 已有未过期的条目时保留原值, 避免覆盖并发写入的新值
+     */
+    void load(Class<?> entityType, Object entity) {
+        put(entityType, entity, false);
+    }
+
+    /**
+     * 写入提交后的实体
+     */
+    void written(Class<?> entityType, Object entity) {
+        put(entityType, entity, true);
+    }
+
+    void clear(Class<?> entityType) {
+        Entities map = entities.get(entityType);
+        if (map != null) {
+            map.entries.clear();
+        }
+    }
+
+    private void put(Class<?> entityType, Object entity, boolean overwrite) {
+        if (!entityType.isInstance(entity)) {
+            return;
+        }
+        Entities map = Util.computeIfAbsent(entities, entityType, Entities::new);
+        Object id = map.idOf(entity);
+        if (id == null) {
+            return;
+        }
+        Entry entry = new Entry(Util.copyEntity(configuration, entity), System.nanoTime() + ttl);
+        if (overwrite) {
+            map.entries.put(id, entry);
+        } else {
+            map.entries.merge(id, entry, (old, loaded) -> old.expiresAt - System.nanoTime() < 0 ? loaded : old);
+        }
+        if (map.entries.size() > maxSize) {
+            map.shrink();
+        }
+    }
+
+    private final class Entities {
+
+        private final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+        private final Class<?> idType;
+        private final String idProperty;
+        private final Reflector reflector;
+
+        private Entities(Class<?> entityType) {
+            Field idField = Util.toIdField(entityType);
+            this.idType = idField == null ? null : idField.getType();
+            this.idProperty = idField == null ? null : idField.getName();
+            this.reflector = configuration.getReflectorFactory().findForClass(entityType);
+        }
+
+        private Object idOf(Object entity) {
+            if (idProperty == null) {
+                return null;
+            }
+            try {
+                return reflector.getGetInvoker(idProperty).invoke(entity, null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot read @Id of " + entity.getClass().getName(), e);
+            }
+        }
+
+        /**
+         * 查询参数与@Id字段的数值类型可能不同(int参数对应long主键), 统一为@Id字段的类型
+         */
+        private Object key(Object id) {
+            if (!(id instanceof Number) || idType == null) {
+                return id;
+            }
+            Number number = (Number) id;
+            if (idType == long.class || idType == Long.class) {
+                return number.longValue();
+            } else if (idType == int.class || idType == Integer.class) {
+                return number.intValue();
+            } else if (idType == short.class || idType == Short.class) {
+                return number.shortValue();
+            }
+            return id;
+        }
+
+        private void shrink() {
+            long now = System.nanoTime();
+            entries.values().removeIf(entry -> entry.expiresAt - now < 0);
+            //ConcurrentHashMap的遍历顺序与插入顺序无关, 相当于随机淘汰
+            Iterator<Object> iterator = entries.keySet().iterator();
+            int excess = entries.size() - maxSize * 9 / 10;
+            while (excess-- > 0 && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object entity;
+        private final long expiresAt;
+
+        private Entry(Object entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
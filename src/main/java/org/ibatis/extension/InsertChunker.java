@@ -0,0 +1,78 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.reflection.Reflector;
+import org.apache.ibatis.reflection.invoker.Invoker;
+import org.apache.ibatis.session.Configuration;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * 多行VALUES插入的分块. 每块不超过batchSize与驱动的占位符上限;
+ * 设置了maxPacketBytes时再按估算的语句字节数切分, 避免整条语句超过MySQL的max_allowed_packet.
+ */
+final class InsertChunker {
+
+    //INSERT INTO与列名等语句本身的余量
+    private static final int STATEMENT_OVERHEAD = 4096;
+
+    private final int maxRows;
+    private final long maxBytes;
+    private final Invoker[] getters;
+
+    InsertChunker(Configuration configuration, Class<?> entityType, List<Field> fields, int maxRows, long maxPacketBytes) {
+        this.maxRows = Math.max(1, maxRows);
+        this.maxBytes = maxPacketBytes > 0 ? Math.max(1, maxPacketBytes - STATEMENT_OVERHEAD) : 0;
+        this.getters = new Invoker[fields.size()];
+        if (maxBytes > 0) {
+            Reflector reflector = configuration.getReflectorFactory().findForClass(entityType);
+            for (int i = 0; i < getters.length; i++) {
+                getters[i] = reflector.getGetInvoker(fields.get(i).getName());
+            }
+        }
+    }
+
+    /**
+     * 从from开始的一块的结束位置(不含), 单行超过上限时仍单独成块, 由数据库报错
+     */
+    int end(List<?> rows, int from) {
+        int limit = Math.min(rows.size(), from + maxRows);
+        if (maxBytes == 0) {
+            return limit;
+        }
+        long bytes = 0;
+        int end = from;
+        while (end < limit) {
+            bytes += estimate(rows.get(end));
+            if (bytes > maxBytes && end > from) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * 按文本协议估算一行的字节数: 字符串按每个char最多3字节(UTF-8)计, 二进制按转义后最多2倍计
+     */
+    private long estimate(Object entity) {
+        long bytes = 3;
+        for (Invoker getter : getters) {
+            Object value;
+            try {
+                value = getter.invoke(entity, null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Failed to read " + entity.getClass().getName() + " for the insert size", e);
+            }
+            if (value instanceof CharSequence) {
+                bytes += 3L * ((CharSequence) value).length() + 3;
+            } else if (value instanceof byte[]) {
+                bytes += 2L * ((byte[]) value).length + 10;
+            } else {
+                bytes += 32;
+            }
+        }
+        return bytes;
+    }
+}
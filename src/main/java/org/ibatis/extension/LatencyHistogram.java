@@ -0,0 +1,62 @@
+package org.ibatis.extension;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对数线性分桶的耗时直方图(纳秒). 每个2的幂区间再分为8个子桶, 相对误差不超过12.5%;
+ * 记录只做原子自增, 不分配对象, 可在调用路径上并发使用.
+ */
+final class LatencyHistogram {
+
+    //小于16的值各占一个桶, 之后每个2的幂区间8个桶
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = (63 - 3) * SUB_BUCKETS + LINEAR;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            //重试直到max不小于nanos
+        }
+    }
+
+    SQL.LatencyStatistics snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += snapshot[i] = counts.get(i);
+        }
+        return new SQL.LatencyStatistics(snapshot, count, sum.sum(), max.get());
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 3;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * 桶的上界, 作为落在该桶内的值的估计
+     */
+    static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
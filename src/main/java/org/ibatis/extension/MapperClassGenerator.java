@@ -0,0 +1,420 @@
+package org.ibatis.extension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * 为mapper接口生成实现类, 以hidden class的形式定义在mapper所在的包中.
+ * 每个方法直接取出对应下标的调用函数并执行, 不经过Proxy的InvocationHandler与Method查表:
+ * <pre>
+ * public R method(A a, B b) {
+ *     return (R) invokers[i].apply(new Object[]{a, b});
+ * }
+ * </pre>
+ * 方法体都是直线代码, 不需要StackMapTable; 无法生成时返回null, 由调用方退回到Proxy.
+ * hidden class需要JDK 15, 以反射查找defineHiddenClass, 更早的JDK上始终退回到Proxy.
+ */
+final class MapperClassGenerator {
+
+    private static final String FUNCTION = "java/util/function/Function";
+    private static final String FUNCTION_ARRAY = "[Ljava/util/function/Function;";
+    private static final String FIELD = "invokers";
+    //Lookup.defineHiddenClass(byte[], boolean, ClassOption...), JDK 15之前为null
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionType, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            //JDK 15之前没有hidden class
+        }
+        DEFINE_HIDDEN_CLASS = method;
+        NO_OPTIONS = options;
+    }
+
+    private final ConstantPool pool = new ConstantPool();
+
+    private MapperClassGenerator() {
+    }
+
+    /**
+     * 返回需要生成实现的方法, 同签名的方法只保留一个
+     */
+    static List<Method> methods(Class<?> mapper) {
+        Map<String, Method> methods = new LinkedHashMap<>();
+        for (Method method : mapper.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers())) {
+                methods.putIfAbsent(method.getName() + descriptor(method), method);
+            }
+        }
+        return new ArrayList<>(methods.values());
+    }
+
+    /**
+     * @param invokers 与{@link #methods(Class)}一一对应的调用函数
+     */
+    static <T> T generate(Class<T> mapper, List<Method> methods, Function<Object[], Object>[] invokers) {
+        try {
+            if (DEFINE_HIDDEN_CLASS == null || !isAccessible(mapper, mapper) || methods.size() != invokers.length) {
+                return null;
+            }
+            for (Method method : methods) {
+                if (!isAccessible(mapper, method.getReturnType())) {
+                    return null;
+                }
+                for (Class<?> type : method.getParameterTypes()) {
+                    if (!isAccessible(mapper, type)) {
+                        return null;
+                    }
+                }
+            }
+
+            String name = mapper.getName().replace('.', '/') + "$$Generated";
+            byte[] bytes = new MapperClassGenerator().toBytes(name, mapper, methods);
+
+            MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+                    MethodHandles.privateLookupIn(mapper, MethodHandles.lookup()), bytes, true, NO_OPTIONS);
+            Object instance = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Function[].class))
+                    .invoke(invokers);
+            return mapper.cast(instance);
+        } catch (Throwable e) {
+            //mapper所在的模块或类加载器不允许定义hidden class等情况
+            return null;
+        }
+    }
+
+    private static boolean isAccessible(Class<?> mapper, Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers()) && (type.getEnclosingClass() == null || isAccessible(mapper, type.getEnclosingClass()))
+                || type.getPackageName().equals(mapper.getPackageName()) && type.getClassLoader() == mapper.getClassLoader() && !Modifier.isPrivate(type.getModifiers());
+    }
+
+    private byte[] toBytes(String name, Class<?> mapper, List<Method> methods) throws IOException {
+        int thisClass = pool.classRef(name);
+        int superClass = pool.classRef("java/lang/Object");
+        int mapperClass = pool.classRef(mapper.getName().replace('.', '/'));
+        int field = pool.fieldRef(name, FIELD, FUNCTION_ARRAY);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        //public final class X extends Object implements Mapper
+        out.writeShort(0x0001 | 0x0010 | 0x0020);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(mapperClass);
+
+        //private final Function[] invokers;
+        out.writeShort(1);
+        out.writeShort(0x0002 | 0x0010);
+        out.writeShort(pool.utf8(FIELD));
+        out.writeShort(pool.utf8(FUNCTION_ARRAY));
+        out.writeShort(0);
+
+        out.writeShort(methods.size() + 1);
+        writeConstructor(out, field);
+        for (int i = 0; i < methods.size(); i++) {
+            writeMethod(out, field, i, methods.get(i));
+        }
+
+        //attributes
+        out.writeShort(0);
+        out.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(0xCAFEBABE);
+        header.writeShort(0);
+        //Java 8
+        header.writeShort(52);
+        pool.write(header);
+        header.write(body.toByteArray());
+        header.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeConstructor(DataOutputStream out, int field) throws IOException {
+        Code code = new Code();
+        code.op(0x2A);                                                          //aload_0
+        code.op(0xB7).u2(pool.methodRef("java/lang/Object", "<init>", "()V")); //invokespecial
+        code.op(0x2A);                                                          //aload_0
+        code.op(0x2B);                                                          //aload_1
+        code.op(0xB5).u2(field);                                                //putfield
+        code.op(0xB1);                                                          //return
+        writeMethod(out, "<init>", "(" + FUNCTION_ARRAY + ")V", code, 2, 2);
+    }
+
+    private void writeMethod(DataOutputStream out, int field, int index, Method method) throws IOException {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+
+        Code code = new Code();
+        code.op(0x2A);                                                          //aload_0
+        code.op(0xB4).u2(field);                                                //getfield
+        code.push(index);
+        code.op(0x32);                                                          //aaload
+
+        int locals = 1;
+        if (parameterTypes.length == 0) {
+            code.op(0x01);                                                      //aconst_null
+        } else {
+            code.push(parameterTypes.length);
+            code.op(0xBD).u2(pool.classRef("java/lang/Object"));               //anewarray
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Class<?> type = parameterTypes[i];
+                code.op(0x59);                                                  //dup
+                code.push(i);
+                code.load(type, locals);
+                if (type.isPrimitive()) {
+                    String wrapper = wrapper(type);
+                    code.op(0xB8).u2(pool.methodRef(wrapper, "valueOf", "(" + descriptor(type) + ")L" + wrapper + ";"));
+                }
+                code.op(0x53);                                                  //aastore
+                locals += type == long.class || type == double.class ? 2 : 1;
+            }
+        }
+        code.op(0xB9).u2(pool.interfaceMethodRef(FUNCTION, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;")).u1(2).u1(0);
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType == void.class) {
+            code.op(0x57);                                                      //pop
+            code.op(0xB1);                                                      //return
+        } else if (returnType.isPrimitive()) {
+            String wrapper = wrapper(returnType);
+            code.op(0xC0).u2(pool.classRef(wrapper));                          //checkcast
+            code.op(0xB6).u2(pool.methodRef(wrapper, returnType.getName() + "Value", "()" + descriptor(returnType)));
+            code.op(returnOpcode(returnType));
+        } else {
+            if (returnType != Object.class) {
+                code.op(0xC0).u2(pool.classRef(internalName(returnType)));     //checkcast
+            }
+            code.op(0xB0);                                                      //areturn
+        }
+
+        writeMethod(out, method.getName(), descriptor(method), code, 7, locals);
+    }
+
+    private void writeMethod(DataOutputStream out, String name, String descriptor, Code code, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001);
+        out.writeShort(pool.utf8(name));
+        out.writeShort(pool.utf8(descriptor));
+        out.writeShort(1);
+
+        byte[] bytecode = code.toByteArray();
+        out.writeShort(pool.utf8("Code"));
+        out.writeInt(12 + bytecode.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        //exception_table, attributes
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private static int returnOpcode(Class<?> type) {
+        if (type == long.class) {
+            return 0xAD;                                                        //lreturn
+        } else if (type == float.class) {
+            return 0xAE;                                                        //freturn
+        } else if (type == double.class) {
+            return 0xAF;                                                        //dreturn
+        }
+        return 0xAC;                                                            //ireturn
+    }
+
+    private static String wrapper(Class<?> type) {
+        if (type == int.class) {
+            return "java/lang/Integer";
+        } else if (type == char.class) {
+            return "java/lang/Character";
+        }
+        String name = type.getName();
+        return "java/lang/" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String internalName(Class<?> type) {
+        return type.isArray() ? descriptor(type) : type.getName().replace('.', '/');
+    }
+
+    private static String descriptor(Method method) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> type : method.getParameterTypes()) {
+            sb.append(descriptor(type));
+        }
+        return sb.append(")").append(descriptor(method.getReturnType())).toString();
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        } else if (type == int.class) {
+            return "I";
+        } else if (type == long.class) {
+            return "J";
+        } else if (type == boolean.class) {
+            return "Z";
+        } else if (type == byte.class) {
+            return "B";
+        } else if (type == char.class) {
+            return "C";
+        } else if (type == short.class) {
+            return "S";
+        } else if (type == float.class) {
+            return "F";
+        } else if (type == double.class) {
+            return "D";
+        } else if (type == void.class) {
+            return "V";
+        }
+        return "L" + type.getName().replace('.', '/') + ";";
+    }
+
+    private static final class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        private Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        private Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        private void push(int value) {
+            if (value <= 5) {
+                op(0x03 + value);                                               //iconst_<n>
+            } else if (value <= Byte.MAX_VALUE) {
+                op(0x10).u1(value);                                             //bipush
+            } else {
+                op(0x11).u2(value);                                             //sipush
+            }
+        }
+
+        private void load(Class<?> type, int slot) {
+            int opcode;
+            if (!type.isPrimitive()) {
+                opcode = 0x19;                                                  //aload
+            } else if (type == long.class) {
+                opcode = 0x16;                                                  //lload
+            } else if (type == float.class) {
+                opcode = 0x17;                                                  //fload
+            } else if (type == double.class) {
+                opcode = 0x18;                                                  //dload
+            } else {
+                opcode = 0x15;                                                  //iload
+            }
+            if (slot > 0xFF) {
+                op(0xC4).op(opcode).u2(slot);                                   //wide
+            } else {
+                op(opcode).u1(slot);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int utf8(String value) {
+            return entry("U" + value, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        private int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, out -> {
+                out.writeByte(7);
+                out.writeShort(name);
+            });
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            return entry("N" + name + ":" + descriptor, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+        }
+
+        private int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int interfaceMethodRef(String owner, String name, String descriptor) {
+            return memberRef(11, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            return entry(tag + owner + "." + name + ":" + descriptor, out -> {
+                out.writeByte(tag);
+                out.writeShort(classIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private int entry(String key, Writer writer) {
+            Integer index = entries.get(key);
+            if (index == null) {
+                try {
+                    writer.write(out);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                entries.put(key, index = count++);
+            }
+            return index;
+        }
+
+        private void write(DataOutputStream header) throws IOException {
+            out.flush();
+            header.writeShort(count);
+            header.write(bytes.toByteArray());
+        }
+
+        private interface Writer {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.MapKey;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.binding.BindingException;
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.reflection.TypeParameterResolver;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.session.SqlSession;
+import org.ibatis.extension.annotations.Bind;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * mapper方法的调用信息. 每个mapper接口只构建一次, 调用时直接交给SqlSession执行,
+ * 不再经过MyBatis的mapper代理与反射调用.
+ */
+final class MapperMethodInvoker {
+
+    final Method method;
+    final String statement;
+    final boolean select;
+    final boolean insert;
+    //insert/update/delete出错时需要回滚
+    final boolean write;
+    final boolean bulk;
+    //返回Stream/Cursor, session在结果关闭后才释放
+    final boolean streaming;
+    //返回CompletableFuture, 在后台线程上执行
+    final boolean async;
+    //@AsyncAppend的插入, 放入Appender队列由后台线程写入
+    final boolean append;
+    //调用结果的类型, CompletableFuture<T>为T
+    final Class<?> resultType;
+    final boolean omit;
+    //@Bind的实体类型, 非@Bind接口为null
+    final Class<?> entityType;
+
+    private final Class<?> mapper;
+    private final MethodHandle defaultMethod;
+    //返回int[]/long[]/double[]的查询直接取出PrimitiveList的底层数组
+    private final boolean primitiveArray;
+    private volatile MapperMethod.MethodSignature signature;
+    private volatile MapperMethod mapperMethod;
+
+    private MapperMethodInvoker(Class<?> mapper, Method method) {
+        this.mapper = mapper;
+        this.method = method;
+        this.statement = mapper.getName() + "." + method.getName();
+        this.select = method.isAnnotationPresent(Select.class);
+        this.insert = method.isAnnotationPresent(Insert.class);
+        this.write = insert || method.isAnnotationPresent(Update.class) || method.isAnnotationPresent(Delete.class);
+        this.bulk = Util.isBulkOmit(method);
+        this.streaming = select && Util.isStreaming(method);
+        if (select && method.getReturnType() == Iterator.class) {
+            throw new IllegalStateException("Iterator cannot be closed and would hold its connection if not fully read, return Stream or Cursor instead: " + statement);
+        }
+        this.async = Util.isAsync(method);
+        this.append = Util.isAppend(mapper, method);
+        this.resultType = async ? Util.toRawType(Util.unwrapAsync(TypeParameterResolver.resolveReturnType(method, mapper))) : method.getReturnType();
+        this.omit = Util.isOmit(method);
+        Bind bind = mapper.getAnnotation(Bind.class);
+        this.entityType = bind == null ? null : bind.value();
+        this.defaultMethod = method.isDefault() ? toMethodHandle(mapper, method) : null;
+
+        Class<?> componentType = resultType.getComponentType();
+        this.primitiveArray = select && (componentType == int.class || componentType == long.class || componentType == double.class)
+                && !hasParameter(method, RowBounds.class) && !hasParameter(method, ResultHandler.class);
+    }
+
+    /**
+     * 构建mapper接口的分派表
+     */
+    static Map<Method, MapperMethodInvoker> table(Class<?> mapper) {
+        Map<Method, MapperMethodInvoker> table = new HashMap<>();
+        for (Method method : mapper.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers())) {
+                table.put(method, new MapperMethodInvoker(mapper, method));
+            }
+        }
+        return Collections.unmodifiableMap(table);
+    }
+
+    boolean isDefault() {
+        return defaultMethod != null;
+    }
+
+    /**
+     * default方法以代理对象为this执行, 其中对其他mapper方法的调用仍经过分派
+     */
+    Object invokeDefault(Object proxy, Object[] args) throws Throwable {
+        Object[] arguments = new Object[args == null ? 1 : args.length + 1];
+        arguments[0] = proxy;
+        if (args != null) {
+            System.arraycopy(args, 0, arguments, 1, args.length);
+        }
+        return defaultMethod.invokeWithArguments(arguments);
+    }
+
+    Object execute(SqlSession session, Object[] args) {
+        MapperMethod mm = resolve(session);
+        if (primitiveArray) {
+            List<Object> list = session.selectList(statement, signature.convertArgsToSqlCommandParam(args));
+            return PrimitiveList.toArray(list, resultType.getComponentType());
+        }
+        if (async) {
+            return executeUnwrapped(session, args);
+        }
+        return mm.execute(session, args);
+    }
+
+    /**
+     * MapperMethod按方法声明的返回类型分派, CompletableFuture<T>的方法在这里按T执行
+     */
+    private Object executeUnwrapped(SqlSession session, Object[] args) {
+        Object param = signature.convertArgsToSqlCommandParam(args);
+        if (!select) {
+            //insert/delete在DefaultSqlSession中同样以update执行
+            return rowCountResult(session.update(statement, param));
+        }
+
+        MapKey mapKey = method.getAnnotation(MapKey.class);
+        if (mapKey != null && Map.class.isAssignableFrom(resultType)) {
+            return signature.hasRowBounds()
+                    ? session.selectMap(statement, param, mapKey.value(), signature.extractRowBounds(args))
+                    : session.selectMap(statement, param, mapKey.value());
+        }
+        if (resultType.isArray() || Collection.class.isAssignableFrom(resultType)) {
+            List<Object> list = signature.hasRowBounds()
+                    ? session.selectList(statement, param, signature.extractRowBounds(args))
+                    : session.selectList(statement, param);
+            if (resultType.isArray()) {
+                Object array = Array.newInstance(resultType.getComponentType(), list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    Array.set(array, i, list.get(i));
+                }
+                return array;
+            }
+            if (resultType.isInstance(list)) {
+                return list;
+            }
+            @SuppressWarnings("unchecked")
+            Collection<Object> collection = (Collection<Object>) session.getConfiguration().getObjectFactory().create(resultType);
+            collection.addAll(list);
+            return collection;
+        }
+        Object val = session.selectOne(statement, param);
+        return resultType == Optional.class ? Optional.ofNullable(val) : val;
+    }
+
+    /**
+     * 按结果类型转换写语句影响的行数
+     */
+    Object rowCountResult(int rows) {
+        if (resultType == void.class || resultType == Void.class) {
+            return null;
+        } else if (resultType == int.class || resultType == Integer.class) {
+            return rows;
+        } else if (resultType == long.class || resultType == Long.class) {
+            return (long) rows;
+        } else if (resultType == boolean.class || resultType == Boolean.class) {
+            return rows > 0;
+        }
+        throw new BindingException("Mapper method '" + statement + "' has an unsupported return type: " + resultType);
+    }
+
+    /**
+     * 以游标执行查询, 结果关闭时一并关闭owner; owner为null时session由调用方管理
+     */
+    Object stream(SqlSession session, Object[] args, SqlSession owner) {
+        resolve(session);
+        Object param = signature.convertArgsToSqlCommandParam(args);
+        Cursor<Object> cursor = signature.hasRowBounds()
+                ? session.selectCursor(statement, param, signature.extractRowBounds(args))
+                : session.selectCursor(statement, param);
+        return StreamingCursor.adapt(cursor, owner, method.getReturnType());
+    }
+
+    /**
+     * 首次调用时经由session注册mapper(建表与解析statement), 之后复用MapperMethod
+     */
+    MapperMethod resolve(SqlSession session) {
+        MapperMethod mm = mapperMethod;
+        if (mm == null) {
+            session.getMapper(mapper);
+            signature = new MapperMethod.MethodSignature(session.getConfiguration(), mapper, method);
+            mapperMethod = mm = new MapperMethod(mapper, method, session.getConfiguration());
+        }
+        return mm;
+    }
+
+    private static boolean hasParameter(Method method, Class<?> type) {
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (type.isAssignableFrom(parameterType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MethodHandle toMethodHandle(Class<?> mapper, Method method) {
+        try {
+            return MethodHandles.privateLookupIn(mapper, MethodHandles.lookup()).unreflectSpecial(method, mapper);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access default method: " + method, e);
+        }
+    }
+}
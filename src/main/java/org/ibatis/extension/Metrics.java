@@ -0,0 +1,176 @@
+package org.ibatis.extension;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 按MappedStatement统计的调用次数、错误数、行数与耗时, 以及各连接池取连接的等待时间.
+ * 只在{@link SQL.Builder#metrics(boolean)}开启时创建, 关闭时调用路径上不产生任何开销.
+ * 每个统计项同时注册为JMX MBean: org.ibatis.extension:type=Statement|Pool|Append,sql=实例序号,name=..., 在SQL.close时注销
+ */
+final class Metrics {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    //当前线程在取连接上累计等待的时间, 调用耗时中扣除这一部分
+    private static final ThreadLocal<long[]> CHECKOUT = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final String instance = String.valueOf(INSTANCES.incrementAndGet());
+    private final Map<String, StatementMetrics> statements = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> pools = new ConcurrentHashMap<>();
+    private final Queue<ObjectName> registered = new ConcurrentLinkedQueue<>();
+
+    StatementMetrics statement(String id) {
+        return Util.computeIfAbsent(statements, id, k -> {
+            StatementMetrics metrics = new StatementMetrics();
+            register("Statement", k, () -> metrics.snapshot().toAttributes());
+            return metrics;
+        });
+    }
+
+    LatencyHistogram pool(String name) {
+        return Util.computeIfAbsent(pools, name, k -> {
+            LatencyHistogram histogram = new LatencyHistogram();
+            register("Pool", k, () -> histogram.snapshot().toAttributes());
+            return histogram;
+        });
+    }
+
+    void checkout(LatencyHistogram pool, long nanos) {
+        pool.record(nanos);
+        CHECKOUT.get()[0] += nanos;
+    }
+
+    static long checkoutNanos() {
+        return CHECKOUT.get()[0];
+    }
+
+    Map<String, SQL.StatementStatistics> statementStatistics() {
+        Map<String, SQL.StatementStatistics> statistics = new LinkedHashMap<>();
+        statements.forEach((id, metrics) -> statistics.put(id, metrics.snapshot()));
+        return statistics;
+    }
+
+    Map<String, SQL.LatencyStatistics> checkoutStatistics() {
+        Map<String, SQL.LatencyStatistics> statistics = new LinkedHashMap<>();
+        pools.forEach((name, histogram) -> statistics.put(name, histogram.snapshot()));
+        return statistics;
+    }
+
+    void register(String type, String name, Supplier<Map<String, Object>> attributes) {
+        try {
+            ObjectName objectName = new ObjectName("org.ibatis.extension:type=" + type + ",sql=" + instance + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(type, attributes), objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            //JMX不可用时仍可通过SQL.statementStatistics读取
+        }
+    }
+
+    /**
+     * 注销本实例注册的全部MBean
+     */
+    void close() {
+        ObjectName objectName;
+        while ((objectName = registered.poll()) != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+            }
+        }
+    }
+
+    static final class StatementMetrics {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        void record(long nanos, boolean error) {
+            calls.increment();
+            if (error) {
+                errors.increment();
+            }
+            latency.record(nanos);
+        }
+
+        void rows(long count) {
+            if (count > 0) {
+                rows.add(count);
+            }
+        }
+
+        SQL.StatementStatistics snapshot() {
+            return new SQL.StatementStatistics(calls.sum(), errors.sum(), rows.sum(), latency.snapshot());
+        }
+    }
+
+    /**
+     * 只读的MBean, 属性在每次读取时重新生成快照
+     */
+    private static final class Bean implements DynamicMBean {
+
+        private final String type;
+        private final Supplier<Map<String, Object>> attributes;
+
+        private Bean(String type, Supplier<Map<String, Object>> attributes) {
+            this.type = type;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes.get().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> values = attributes.get();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Object> values = attributes.get();
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                infos[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName() + "$" + type, type + " metrics", infos, null, null, null);
+        }
+    }
+}
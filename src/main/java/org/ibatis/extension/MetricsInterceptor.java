@@ -0,0 +1,59 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Invocation;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * 按MappedStatement统计查询返回与写入影响的行数. 调用次数与耗时在DefaultSQL中记录, 这里只能看到Executor的返回值.
+ * 每个session都会包装一次Executor, Plugin.wrap每次都要反射解析@Signature, 这里直接生成代理.
+ */
+final class MetricsInterceptor implements Interceptor {
+
+    private final Metrics metrics;
+
+    MetricsInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        return invocation.proceed();
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (!(target instanceof Executor)) {
+            return target;
+        }
+        return Proxy.newProxyInstance(Executor.class.getClassLoader(), new Class[]{Executor.class}, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            switch (method.getName()) {
+                case "query":
+                    if (result instanceof List) {
+                        metrics.statement(((MappedStatement) args[0]).getId()).rows(((List<?>) result).size());
+                    }
+                    break;
+
+                case "update":
+                    //批量执行器返回BATCH_UPDATE_RETURN_VALUE(负数), 不计入
+                    metrics.statement(((MappedStatement) args[0]).getId()).rows((Integer) result);
+                    break;
+
+                default:
+                    break;
+            }
+            return result;
+        });
+    }
+}
@@ -0,0 +1,126 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.ExecutorException;
+import org.apache.ibatis.executor.keygen.KeyGenerator;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 多行VALUES插入的id回写.
+ * 驱动返回的key数量与行数一致时按顺序回写(MySQL), 只返回最后一个key时按自增连续性倒推(SQLite).
+ */
+final class MultiRowKeyGenerator implements KeyGenerator {
+
+    static final MultiRowKeyGenerator INSTANCE = new MultiRowKeyGenerator();
+
+    //BatchExecutor对同一个Statement里的每个参数依次回调processAfter, 需记录已消费的key;
+    //按executor保存, session关闭后随executor回收, 不在线程上残留Statement
+    private final Map<Executor, KeyCursor> batchCursors = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private MultiRowKeyGenerator() {
+    }
+
+    @Override
+    public void processBefore(Executor executor, MappedStatement ms, Statement stmt, Object parameter) {
+    }
+
+    @Override
+    public void processAfter(Executor executor, MappedStatement ms, Statement stmt, Object parameter) {
+        String[] keyProperties = ms.getKeyProperties();
+        if (keyProperties == null || keyProperties.length == 0) {
+            return;
+        }
+
+        Collection<?> rows = toRows(parameter);
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        try {
+            KeyCursor cursor;
+            if (executor instanceof BatchExecutor) {
+                cursor = batchCursors.get(executor);
+                if (cursor == null || cursor.stmt != stmt) {
+                    batchCursors.put(executor, cursor = new KeyCursor(stmt));
+                }
+            } else {
+                cursor = new KeyCursor(stmt);
+            }
+            assignKeys(ms.getConfiguration(), keyProperties[0], rows, cursor);
+        } catch (SQLException e) {
+            throw new ExecutorException("Error getting generated key or setting result to parameter object. Cause: " + e, e);
+        }
+    }
+
+    private void assignKeys(Configuration configuration, String keyProperty, Collection<?> rows, KeyCursor cursor) {
+        int remaining = cursor.keys.size() - cursor.offset;
+        if (remaining <= 0) {
+            return;
+        }
+
+        long next = 0;
+        boolean sequential = remaining < rows.size();
+        if (sequential) {
+            next = cursor.keys.get(cursor.keys.size() - 1) - rows.size() + 1;
+        }
+
+        for (Object row : rows) {
+            long key = sequential ? next++ : cursor.keys.get(cursor.offset++);
+            MetaObject metaObject = configuration.newMetaObject(row);
+            metaObject.setValue(keyProperty, convert(key, metaObject.getSetterType(keyProperty)));
+        }
+    }
+
+    private static Object convert(long key, Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return (int) key;
+        } else if (type == short.class || type == Short.class) {
+            return (short) key;
+        } else if (type == String.class) {
+            return String.valueOf(key);
+        }
+        return key;
+    }
+
+    private static Collection<?> toRows(Object parameter) {
+        if (parameter instanceof Map) {
+            Object rows = ((Map<?, ?>) parameter).get("list");
+            if (rows instanceof Collection) {
+                return (Collection<?>) rows;
+            }
+        }
+        if (parameter instanceof Collection) {
+            return (Collection<?>) parameter;
+        }
+        throw new ExecutorException("Multi-row insert expects a list parameter, but was: " + parameter);
+    }
+
+    private static final class KeyCursor {
+
+        private final Statement stmt;
+        private final List<Long> keys = new ArrayList<>();
+        private int offset;
+
+        private KeyCursor(Statement stmt) throws SQLException {
+            this.stmt = stmt;
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                while (rs.next()) {
+                    keys.add(rs.getLong(1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.builder.BuilderException;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 把单行的 INSERT ... VALUES(?,?) 展开为 VALUES(?,?),(?,?),... 的多行语句.
+ * 参数为list, 每行的实体以附加参数绑定, 不经过foreach的OGNL求值.
+ * 只缓存最大行数(即完整分块)的展开结果, 末尾不足一块的余数每次展开, 每条语句只保留一个模板.
+ * VALUES之后的ON DUPLICATE KEY/ON CONFLICT子句原样保留在末尾, 其中不能有参数.
+ */
+final class MultiRowSqlSource implements SqlSource {
+
+    private static final String ROW_PREFIX = "__row";
+    private static final Pattern VALUES_PATTERN = Pattern.compile("(?i)\\bVALUES\\s*\\(");
+
+    private final Configuration configuration;
+    private final String head;
+    private final String values;
+    private final String tail;
+    private final List<ParameterMapping> parameterMappings;
+    private volatile Template full;
+
+    MultiRowSqlSource(Configuration configuration, SqlSource singleRow) {
+        BoundSql boundSql = singleRow.getBoundSql(null);
+        String sql = boundSql.getSql();
+        //@omit生成的列名都带转义符, 第一个 VALUES( 即行的开始; 括号配对处为行的结束
+        Matcher matcher = VALUES_PATTERN.matcher(sql);
+        int end = -1;
+        if (matcher.find()) {
+            for (int i = matcher.end() - 1, depth = 0; i < sql.length() && end < 0; i++) {
+                char c = sql.charAt(i);
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    end = i + 1;
+                }
+            }
+        }
+        if (end < 0) {
+            throw new BuilderException("Not a single row insert: " + sql);
+        }
+        this.configuration = configuration;
+        this.head = sql.substring(0, matcher.start() + "VALUES".length());
+        this.values = sql.substring(matcher.start() + "VALUES".length(), end).trim();
+        this.tail = sql.substring(end);
+        if (tail.indexOf('?') >= 0) {
+            throw new BuilderException("Parameters after VALUES are not supported: " + sql);
+        }
+        this.parameterMappings = boundSql.getParameterMappings();
+    }
+
+    @Override
+    public BoundSql getBoundSql(Object parameterObject) {
+        List<?> rows = rowsOf(parameterObject);
+        Template template = full;
+        if (template == null || template.rows != rows.size()) {
+            template = expand(rows.size());
+            if (full == null || full.rows < template.rows) {
+                full = template;
+            }
+        }
+        BoundSql boundSql = new BoundSql(configuration, template.sql, template.parameterMappings, parameterObject);
+        for (int i = 0; i < rows.size(); i++) {
+            boundSql.setAdditionalParameter(ROW_PREFIX + i, rows.get(i));
+        }
+        return boundSql;
+    }
+
+    private Template expand(int rows) {
+        StringBuilder sql = new StringBuilder(head.length() + (values.length() + 1) * rows + tail.length()).append(head);
+        List<ParameterMapping> mappings = new ArrayList<>(parameterMappings.size() * rows);
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ",").append(values);
+            for (ParameterMapping mapping : parameterMappings) {
+                mappings.add(new ParameterMapping.Builder(configuration, ROW_PREFIX + i + "." + mapping.getProperty(), mapping.getTypeHandler())
+                        .javaType(mapping.getJavaType())
+                        .jdbcType(mapping.getJdbcType())
+                        .build());
+            }
+        }
+        sql.append(tail);
+        return new Template(rows, sql.toString(), Collections.unmodifiableList(mappings));
+    }
+
+    private static List<?> rowsOf(Object parameterObject) {
+        if (parameterObject instanceof Map) {
+            Object rows = ((Map<?, ?>) parameterObject).get("list");
+            if (rows instanceof List) {
+                return (List<?>) rows;
+            }
+        }
+        if (parameterObject instanceof List) {
+            return (List<?>) parameterObject;
+        }
+        throw new BuilderException("Multi-row insert expects a list parameter, but was: " + parameterObject);
+    }
+
+    private static final class Template {
+
+        private final int rows;
+        private final String sql;
+        private final List<ParameterMapping> parameterMappings;
+
+        private Template(int rows, String sql, List<ParameterMapping> parameterMappings) {
+            this.rows = rows;
+            this.sql = sql;
+            this.parameterMappings = parameterMappings;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.ibatis.extension;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 以原始类型数组保存的单列查询结果, 只在get时装箱; 返回原始类型数组时直接复制底层数组.
+ */
+final class PrimitiveList extends AbstractList<Object> implements RandomAccess {
+
+    private final Class<?> type;
+    private final Object array;
+    private final int size;
+
+    PrimitiveList(Class<?> type, Object array, int size) {
+        this.type = type;
+        this.array = array;
+        this.size = size;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (type == int.class) {
+            return ((int[]) array)[index];
+        } else if (type == long.class) {
+            return ((long[]) array)[index];
+        }
+        return ((double[]) array)[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 把查询结果转换为componentType类型的数组, 非PrimitiveList时逐个元素转换
+     */
+    static Object toArray(List<?> list, Class<?> componentType) {
+        if (list instanceof PrimitiveList && ((PrimitiveList) list).type == componentType) {
+            PrimitiveList primitives = (PrimitiveList) list;
+            if (componentType == int.class) {
+                return Arrays.copyOf((int[]) primitives.array, primitives.size);
+            } else if (componentType == long.class) {
+                return Arrays.copyOf((long[]) primitives.array, primitives.size);
+            }
+            return Arrays.copyOf((double[]) primitives.array, primitives.size);
+        }
+
+        Object array = Array.newInstance(componentType, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            Array.set(array, i, list.get(i));
+        }
+        return array;
+    }
+}
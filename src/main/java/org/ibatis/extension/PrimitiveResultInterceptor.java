@@ -0,0 +1,145 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.executor.resultset.DefaultResultSetHandler;
+import org.apache.ibatis.executor.resultset.ResultSetHandler;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.session.RowBounds;
+
+import java.sql.CallableStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 结果类型为int/long/double的查询(返回原始类型或原始类型数组的mapper方法)直接按下标读取第一列,
+ * 保存到{@link PrimitiveList}中, 不再逐行经过DefaultResultSetHandler的映射与装箱.
+ * 只替换符合条件的ResultSetHandler, 其余查询不产生额外的代理.
+ */
+final class PrimitiveResultInterceptor implements Interceptor {
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        return invocation.proceed();
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        if (target.getClass() != DefaultResultSetHandler.class) {
+            return target;
+        }
+        try {
+            MappedStatement ms = (MappedStatement) Util.cachedField(DefaultResultSetHandler.class, "mappedStatement").get(target);
+            RowBounds rowBounds = (RowBounds) Util.cachedField(DefaultResultSetHandler.class, "rowBounds").get(target);
+            Object resultHandler = Util.cachedField(DefaultResultSetHandler.class, "resultHandler").get(target);
+
+            List<ResultMap> resultMaps = ms.getResultMaps();
+            if (resultMaps.size() != 1 || ms.getResultSets() != null || resultHandler != null || rowBounds != RowBounds.DEFAULT) {
+                return target;
+            }
+            ResultMap resultMap = resultMaps.get(0);
+            Class<?> type = resultMap.getType();
+            if ((type == int.class || type == long.class || type == double.class) && resultMap.getResultMappings().isEmpty()) {
+                return new Handler((ResultSetHandler) target, type);
+            }
+        } catch (IllegalAccessException ignored) {
+        }
+        return target;
+    }
+
+    private static final class Handler implements ResultSetHandler {
+
+        private final ResultSetHandler delegate;
+        private final Class<?> type;
+
+        private Handler(ResultSetHandler delegate, Class<?> type) {
+            this.delegate = delegate;
+            this.type = type;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <E> List<E> handleResultSets(Statement stmt) throws SQLException {
+            ResultSet rs = stmt.getResultSet();
+            if (rs == null) {
+                return delegate.handleResultSets(stmt);
+            }
+            try {
+                return (List<E>) read(rs);
+            } finally {
+                rs.close();
+            }
+        }
+
+        private List<?> read(ResultSet rs) throws SQLException {
+            int size = 0;
+            if (type == int.class) {
+                int[] values = new int[16];
+                while (rs.next()) {
+                    int value = rs.getInt(1);
+                    if (rs.wasNull()) {
+                        return readBoxed(rs, new PrimitiveList(type, values, size));
+                    }
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size << 1);
+                    }
+                    values[size++] = value;
+                }
+                return new PrimitiveList(type, values, size);
+            } else if (type == long.class) {
+                long[] values = new long[16];
+                while (rs.next()) {
+                    long value = rs.getLong(1);
+                    if (rs.wasNull()) {
+                        return readBoxed(rs, new PrimitiveList(type, values, size));
+                    }
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size << 1);
+                    }
+                    values[size++] = value;
+                }
+                return new PrimitiveList(type, values, size);
+            }
+            double[] values = new double[16];
+            while (rs.next()) {
+                double value = rs.getDouble(1);
+                if (rs.wasNull()) {
+                    return readBoxed(rs, new PrimitiveList(type, values, size));
+                }
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size << 1);
+                }
+                values[size++] = value;
+            }
+            return new PrimitiveList(type, values, size);
+        }
+
+        /**
+         * 出现NULL时与MyBatis一致保留null, 当前行及之后的行按装箱方式读取
+         */
+        private List<?> readBoxed(ResultSet rs, List<?> head) throws SQLException {
+            List<Object> values = new ArrayList<>(head);
+            do {
+                Object value = type == int.class ? (Object) rs.getInt(1) : type == long.class ? (Object) rs.getLong(1) : (Object) rs.getDouble(1);
+                values.add(rs.wasNull() ? null : value);
+            } while (rs.next());
+            return values;
+        }
+
+        @Override
+        public <E> Cursor<E> handleCursorResultSets(Statement stmt) throws SQLException {
+            return delegate.handleCursorResultSets(stmt);
+        }
+
+        @Override
+        public void handleOutputParameters(CallableStatement cs) throws SQLException {
+            delegate.handleOutputParameters(cs);
+        }
+    }
+}
@@ -1,35 +1,382 @@
 package org.ibatis.extension;
 
-import org.apache.ibatis.datasource.pooled.PooledDataSource;
 import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.reflection.DefaultReflectorFactory;
+import org.apache.ibatis.reflection.factory.DefaultObjectFactory;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.SqlSessionFactoryBuilder;
 import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
 
 import javax.sql.DataSource;
 import java.lang.reflect.Field;
-import java.util.Properties;
-import java.util.TimeZone;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public interface SQL {
+public interface SQL extends AutoCloseable {
 
     String OMIT = "@omit";
 
+    /**
+     * 用于{@code @Insert(SQL.UPSERT)}: 按实体字段插入一行, 与@Id或唯一索引冲突时改为更新该行的其他列.
+     * 参数为集合或数组时以多行语句批量执行. 不回写自增id, 返回值为驱动报告的影响行数.
+     */
+    String UPSERT = "@upsert";
+
+    /**
+     * 返回mapper实现. 返回Stream/Cursor的方法逐行读取, 结果关闭前一直占用一个连接, 应在try-with-resources中使用(不支持Iterator);
+     * 连接池只有一个连接时(SQLite内存库或readPoolSize为0)遍历中调用其他mapper方法会立即失败, 应先收集结果或在transaction内遍历
+     */
     <T> T getMapper(Class<T> mapper);
 
+    /**
+     * 在同一个session(连接)上执行action内的所有mapper调用, 结束时统一提交, 出现异常则回滚.
+     * 作用域绑定在当前线程上, 嵌套调用会并入外层事务.
+     */
+    <R> R transaction(Function<SQL, R> action);
+
+    /**
+     * 与transaction相同, 但写语句以批量方式执行, 每累计{@link Builder#batchSize(int)}条flush一次.
+     * 批量模式下insert/update的返回值与自增id在flush之后才可用.
+     */
+    <R> R batch(Function<SQL, R> action);
+
+    /**
+     * 各@Bind实体二级缓存({@link org.ibatis.extension.annotations.Cacheable})的命中统计, 只包含已注册的mapper
+     */
+    Map<Class<?>, CacheStatistics> cacheStatistics();
+
+    /**
+     * 各mapper方法(以MappedStatement id为key)的调用统计, 未开启{@link Builder#metrics(boolean)}时为空
+     */
+    Map<String, StatementStatistics> statementStatistics();
+
+    /**
+     * 各连接池(write/read)取连接的等待时间, 未开启{@link Builder#metrics(boolean)}时为空
+     */
+    Map<String, LatencyStatistics> checkoutStatistics();
+
+    /**
+     * 各{@link org.ibatis.extension.annotations.AsyncAppend} mapper的写入队列统计, 只包含已调用过的mapper
+     */
+    Map<Class<?>, AppendStatistics> appendStatistics();
+
+    /**
+     * 等待此前放入{@link org.ibatis.extension.annotations.AsyncAppend}队列的行全部写入
+     */
+    void flush();
+
+    /**
+     * 写出AsyncAppend队列中剩余的行并等待已返回的CompletableFuture完成, 然后停止后台线程, 注销JMX MBean并关闭内置连接池;
+     * 之后的AsyncAppend调用抛出IllegalStateException, 异步调用得到失败的future. 外部的DataSource与asyncExecutor不会关闭
+     */
+    @Override
+    void close();
+
+    /**
+     * 按键集分页逐页读取全部结果, 每页在上一页最后一行的键之后查询, 读完当前页才查询下一页.
+     * page通常是使用@page标签的mapper方法, start需小于所有键(如自增id传0), 返回空页时结束
+     */
+    static <T, K> Stream<T> keyset(K start, Function<K, List<T>> page, Function<T, K> key) {
+        Iterator<T> iterator = new Iterator<T>() {
+
+            private K after = start;
+            private Iterator<T> current = Collections.emptyIterator();
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && !done) {
+                    List<T> rows = page.apply(after);
+                    if (rows == null || rows.isEmpty()) {
+                        done = true;
+                    } else {
+                        after = key.apply(rows.get(rows.size() - 1));
+                        current = rows.iterator();
+                    }
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+    }
+
+    final class CacheStatistics {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        private final int size;
+
+        CacheStatistics(long hits, long misses, long evictions, long invalidations, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.size = size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * 超出容量被淘汰的结果数
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * 因写入而失效的结果数
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStatistics{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", invalidations=" + invalidations + ", size=" + size + '}';
+        }
+    }
+
+    final class StatementStatistics {
+
+        private final long calls;
+        private final long errors;
+        private final long rows;
+        private final LatencyStatistics latency;
+
+        StatementStatistics(long calls, long errors, long rows, LatencyStatistics latency) {
+            this.calls = calls;
+            this.errors = errors;
+            this.rows = rows;
+            this.latency = latency;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * 查询返回与写入影响的行数; 批量执行器与游标查询的行数无法得知, 不计入
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * 调用耗时, 不含取连接的等待时间
+         */
+        public LatencyStatistics getLatency() {
+            return latency;
+        }
+
+        Map<String, Object> toAttributes() {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("Calls", calls);
+            attributes.put("Errors", errors);
+            attributes.put("Rows", rows);
+            attributes.putAll(latency.toAttributes());
+            attributes.remove("Count");
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return "StatementStatistics{calls=" + calls + ", errors=" + errors + ", rows=" + rows + ", latency=" + latency + '}';
+        }
+    }
+
+    /**
+     * 耗时分布的快照, 单位为纳秒; 分位数取所在桶的上界, 相对误差不超过12.5%
+     */
+    final class LatencyStatistics {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        LatencyStatistics(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile 0到100之间, 如99.9
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if ((seen += counts[i]) >= rank) {
+                    return Math.min(LatencyHistogram.upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        Map<String, Object> toAttributes() {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("Count", count);
+            attributes.put("MeanMicros", getMean() / 1000);
+            attributes.put("P50Micros", getPercentile(50) / 1000.0);
+            attributes.put("P90Micros", getPercentile(90) / 1000.0);
+            attributes.put("P99Micros", getPercentile(99) / 1000.0);
+            attributes.put("P999Micros", getPercentile(99.9) / 1000.0);
+            attributes.put("MaxMicros", max / 1000.0);
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LatencyStatistics{count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, max=%.1fus}",
+                    count, getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, max / 1000.0);
+        }
+    }
+
+    final class AppendStatistics {
+
+        private final long depth;
+        private final long appended;
+        private final long written;
+        private final long failed;
+        private final long batches;
+
+        AppendStatistics(long depth, long appended, long written, long failed, long batches) {
+            this.depth = depth;
+            this.appended = appended;
+            this.written = written;
+            this.failed = failed;
+            this.batches = batches;
+        }
+
+        /**
+         * 已放入队列但尚未写入的行数
+         */
+        public long getDepth() {
+            return depth;
+        }
+
+        public long getAppended() {
+            return appended;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * 逐行重试后仍写入失败而丢弃的行数
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * 成功提交的事务数
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        Map<String, Object> toAttributes() {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("Depth", depth);
+            attributes.put("Appended", appended);
+            attributes.put("Written", written);
+            attributes.put("Failed", failed);
+            attributes.put("Batches", batches);
+            return attributes;
+        }
+
+        @Override
+        public String toString() {
+            return "AppendStatistics{depth=" + depth + ", appended=" + appended + ", written=" + written
+                    + ", failed=" + failed + ", batches=" + batches + '}';
+        }
+    }
+
     final class Builder {
 
+        //MySQL 5.7的max_allowed_packet默认值
+        private static final long DEFAULT_MAX_PACKET_BYTES = 4L * 1024 * 1024;
+
         private String url;
         private Driver driver;
+        private int batchSize = 1000;
+        private Long maxPacketBytes;
+        private int readPoolSize = Runtime.getRuntime().availableProcessors();
+        private int maxActive = 10;
+        private int maxIdle = 5;
+        private long checkoutTimeout = 20000;
+        private String validationQuery;
+        private long validationInterval = 30000;
+        private int statementCacheSize = 64;
+        private DataSource dataSource;
+        private int maxConcurrency;
+        private boolean generateMappers;
+        private Integer fetchSize;
+        private int identityMapSize;
+        private long identityMapTtl;
+        private boolean metrics;
+        private Executor asyncExecutor;
         private final Properties properties;
 
         public Builder() {
             this.properties = new Properties();
-            this.option("serverTimezone", TimeZone.getDefault().getID());
-            this.option("allowPublicKeyRetrieval", "true");
-            this.option("useUnicode", "true");
-            this.option("characterEncoding", "utf-8");
-            this.option("useSSL", "false");
         }
 
         public Builder url(String url) {
@@ -57,27 +404,301 @@ public interface SQL {
             return this;
         }
 
+        /**
+         * 批量写入每次flush的条数, 也是多行插入每条语句的最大行数
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be greater than 0");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * 多行插入每条语句的字节数上限, 按实体字段估算, 超出时拆成多条语句; 0表示只按行数与占位符上限分块.
+         * 未指定时MySQL在build时读取服务端的@@max_allowed_packet, 读取失败按MySQL 5.7的默认值4MB; SQLite不限制
+         */
+        public Builder maxPacketBytes(long maxPacketBytes) {
+            if (maxPacketBytes < 0) {
+                throw new IllegalArgumentException("maxPacketBytes must not be negative");
+            }
+            this.maxPacketBytes = maxPacketBytes;
+            return this;
+        }
+
+        /**
+         * SQLite的只读连接池大小, 查询在只读池上执行, 写入独占一个连接; 为0时读写共用一个连接. 内存库与路径为空的临时库不拆分读连接
+         */
+        public Builder readPoolSize(int readPoolSize) {
+            if (readPoolSize < 0) {
+                throw new IllegalArgumentException("readPoolSize must not be negative");
+            }
+            this.readPoolSize = readPoolSize;
+            return this;
+        }
+
+        /**
+         * 最大活动连接数. SQLite的写连接固定为1个, 读连接池大小由{@link #readPoolSize(int)}指定
+         */
+        public Builder maxActive(int maxActive) {
+            if (maxActive < 1) {
+                throw new IllegalArgumentException("maxActive must be greater than 0");
+            }
+            this.maxActive = maxActive;
+            return this;
+        }
+
+        public Builder maxIdle(int maxIdle) {
+            if (maxIdle < 0) {
+                throw new IllegalArgumentException("maxIdle must not be negative");
+            }
+            this.maxIdle = maxIdle;
+            return this;
+        }
+
+        /**
+         * 获取连接的最长等待时间(毫秒), 超时抛出SQLTransientConnectionException
+         */
+        public Builder checkoutTimeout(long checkoutTimeout) {
+            if (checkoutTimeout < 0) {
+                throw new IllegalArgumentException("checkoutTimeout must not be negative");
+            }
+            this.checkoutTimeout = checkoutTimeout;
+            return this;
+        }
+
+        /**
+         * 空闲超过validationInterval(毫秒)的连接在取出时执行validationQuery校验, 未设置时使用Connection.isValid
+         */
+        public Builder validation(String validationQuery, long validationInterval) {
+            if (validationInterval < 0) {
+                throw new IllegalArgumentException("validationInterval must not be negative");
+            }
+            this.validationQuery = validationQuery;
+            this.validationInterval = validationInterval;
+            return this;
+        }
+
+        /**
+         * 每个连接缓存的PreparedStatement数, 按SQL复用并淘汰最久未使用的; 为0时关闭缓存.
+         * MySQL开启缓存时默认使用服务端预处理(useServerPrepStmts), 复用语句即可省去服务端的解析
+         */
+        public Builder statementCacheSize(int statementCacheSize) {
+            if (statementCacheSize < 0) {
+                throw new IllegalArgumentException("statementCacheSize must not be negative");
+            }
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        /**
+         * 使用外部的DataSource, 此时连接池参数与option均不生效; url仍用于确定数据库类型
+         */
+        public Builder dataSource(DataSource dataSource) {
+            this.dataSource = dataSource;
+            this.maxConcurrency = 0;
+            return this;
+        }
+
+        /**
+         * 使用外部的DataSource, 并用Semaphore限制同时借出的连接数, 等待超过checkoutTimeout时抛出SQLTransientConnectionException.
+         * maxConcurrency不超过外部连接池的上限时, 线程只在Semaphore上等待连接, 不会阻塞在连接池的synchronized/wait中,
+         * 适合在虚拟线程上使用PooledDataSource等基于监视器的连接池; 内置连接池本身即由Semaphore限制, 无需此项
+         */
+        public Builder dataSource(DataSource dataSource, int maxConcurrency) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+            }
+            this.dataSource = dataSource;
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * 为mapper接口生成实现类代替Proxy, 减少每次调用的分派开销; 需要JDK 15及以上(hidden class), 无法生成时仍使用Proxy
+         */
+        public Builder generateMappers(boolean generateMappers) {
+            this.generateMappers = generateMappers;
+            return this;
+        }
+
+        /**
+         * 返回Stream/Cursor的查询每次从数据库取回的行数, 可被@Options(fetchSize)覆盖.
+         * MySQL默认为Integer.MIN_VALUE, 即逐行流式读取; 流式读取期间该连接不能执行其他语句.
+         * 结果关闭前连接不会归还, 连接池只有一个连接时(SQLite内存库或readPoolSize为0)在遍历中调用其他mapper方法会立即失败而不是等待checkoutTimeout;
+         * 先收集结果, 或在{@link SQL#transaction}内遍历使嵌套调用共用同一个连接(SQLite允许, MySQL流式读取时不允许)
+         */
+        public Builder fetchSize(int fetchSize) {
+            if (fetchSize < 0 && fetchSize != Integer.MIN_VALUE) {
+                throw new IllegalArgumentException("fetchSize must not be negative");
+            }
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        /**
+         * 开启主键查询的identityMap: 形如 select * from @table where id=#{id} 的查询优先从内存返回实体副本.
+         * 每个实体最多保存maxSize条, ttl(毫秒)后过期; 绕过本实例修改数据库时, 过期前可能读到旧值
+         */
+        public Builder identityMap(int maxSize, long ttl) {
+            if (maxSize < 1 || ttl < 1) {
+                throw new IllegalArgumentException("maxSize and ttl must be greater than 0");
+            }
+            this.identityMapSize = maxSize;
+            this.identityMapTtl = ttl;
+            return this;
+        }
+
+        /**
+         * 记录每个mapper方法的调用次数、错误数、行数与耗时直方图, 以及取连接的等待时间;
+         * 通过{@link SQL#statementStatistics()}与JMX读取. 默认关闭
+         */
+        public Builder metrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * 执行返回CompletableFuture的mapper方法的线程池. 未指定时在JDK 21及以上使用虚拟线程,
+         * 否则使用与连接数相同大小的守护线程池, 等待的任务超过{@value AsyncDispatcher#QUEUE_CAPACITY}个时future以RejectedExecutionException失败.
+         * 同时提交的单条写入会合并到一个事务中提交, 每个事务最多batchSize条; 这些调用不会加入调用方线程上的transaction/batch,
+         * 在transaction内等待异步写入的结果会与事务争用写连接(SQLite只有一个), 直到checkoutTimeout
+         */
+        public Builder asyncExecutor(Executor asyncExecutor) {
+            this.asyncExecutor = asyncExecutor;
+            return this;
+        }
+
         public SQL build() {
             return build(null);
         }
 
         public SQL build(Configuration config) {
+            if (this.driver == null) {
+                throw new IllegalStateException("Missing url");
+            }
             if (config == null) {
                 config = new Configuration();
             }
 
-            DataSource ds = new PooledDataSource(this.driver.driverName, this.url, this.properties);
+            //@Bind实体的属性读写与实例化改用MethodHandle, 已自定义的工厂保持不变
+            if (config.getReflectorFactory().getClass() == DefaultReflectorFactory.class) {
+                EntityReflectorFactory reflectorFactory = new EntityReflectorFactory();
+                config.setReflectorFactory(reflectorFactory);
+                if (config.getObjectFactory().getClass() == DefaultObjectFactory.class) {
+                    config.setObjectFactory(new EntityObjectFactory(reflectorFactory));
+                }
+            }
+
+            //驱动默认参数, 可被option覆盖
+            Properties properties = new Properties();
+            switch (this.driver) {
+                case MYSQL:
+                    properties.setProperty("serverTimezone", TimeZone.getDefault().getID());
+                    properties.setProperty("allowPublicKeyRetrieval", "true");
+                    properties.setProperty("useUnicode", "true");
+                    properties.setProperty("characterEncoding", "utf-8");
+                    properties.setProperty("useSSL", "false");
+                    properties.setProperty("rewriteBatchedStatements", "true");
+                    if (this.statementCacheSize > 0) {
+                        properties.setProperty("useServerPrepStmts", "true");
+                    }
+                    break;
+
+                case SQLITE:
+                    //由sqlite-jdbc在每个连接打开时执行对应的PRAGMA
+                    properties.setProperty("journal_mode", "WAL");
+                    properties.setProperty("synchronous", "NORMAL");
+                    properties.setProperty("mmap_size", String.valueOf(256L * 1024 * 1024));
+                    properties.setProperty("cache_size", String.valueOf(-64 * 1024));
+                    properties.setProperty("temp_store", "MEMORY");
+                    properties.setProperty("busy_timeout", "5000");
+                    break;
+
+                default:
+                    break;
+            }
+            properties.putAll(this.properties);
+
+            Metrics metrics = this.metrics ? new Metrics() : null;
+            DataSource ds;
+            DataSource readDataSource = null;
+            if (this.dataSource != null) {
+                ds = this.maxConcurrency > 0
+                        ? new BoundedDataSource(this.dataSource, this.maxConcurrency, this.checkoutTimeout, metrics, metrics == null ? null : metrics.pool("write"))
+                        : this.dataSource;
+            } else if (this.driver == Driver.SQLITE) {
+                //SQLite同一时刻只有一个写事务, 写连接只保留一个
+                ds = newPool(properties, 1, 1, metrics, "write");
+
+                //WAL模式下读不阻塞写, 查询走独立的读连接池; 内存库与临时库每个连接都是独立的库, 不能拆分
+                if (this.readPoolSize > 0 && !isPrivateDatabase(this.url)) {
+                    readDataSource = newPool(properties, this.readPoolSize, this.readPoolSize, metrics, "read");
+                }
+            } else {
+                ds = newPool(properties, this.maxActive, this.maxIdle, metrics, "write");
+            }
+            long maxPacketBytes = this.maxPacketBytes != null ? this.maxPacketBytes
+                    : this.driver == Driver.MYSQL ? maxAllowedPacket(ds) : 0;
+            Integer fetchSize = this.fetchSize;
+            if (fetchSize == null && this.driver == Driver.MYSQL) {
+                fetchSize = Integer.MIN_VALUE;
+            }
+
             Environment env = new Environment("mybatis", new JdbcTransactionFactory(), ds);
             config.setEnvironment(env);
+            if (metrics != null) {
+                config.addInterceptor(new MetricsInterceptor(metrics));
+            }
 
             try {
                 Field field = Configuration.class.getDeclaredField("mapperRegistry");
                 field.setAccessible(true);
-                field.set(config, new DefaultMapperRegistry(config, this.driver));
-                return new DefaultSQL(new SqlSessionFactoryBuilder().build(config));
+                field.set(config, new DefaultMapperRegistry(config, this.driver, fetchSize));
+                IdentityMap identityMap = this.identityMapSize > 0
+                        ? new IdentityMap(config, this.identityMapSize, TimeUnit.MILLISECONDS.toNanos(this.identityMapTtl)) : null;
+                //默认的后台线程数与可同时使用的连接数一致
+                int asyncThreads = this.driver == Driver.SQLITE ? (readDataSource == null ? 1 : this.readPoolSize + 1)
+                        : this.maxConcurrency > 0 ? this.maxConcurrency : this.maxActive;
+                return new DefaultSQL(new SqlSessionFactoryBuilder().build(config), readDataSource, this.driver, this.batchSize,
+                        maxPacketBytes, this.generateMappers, identityMap, metrics, this.asyncExecutor, asyncThreads);
             } catch (Exception e) {
                 throw new Error("Failed to set mapperRegistry.", e);
             }
         }
+
+        /**
+         * 内存库(:memory:, mode=memory)与路径为空的临时库, 每个连接打开的都是独立的库
+         */
+        private static boolean isPrivateDatabase(String url) {
+            if (url.contains(":memory:") || url.contains("mode=memory")) {
+                return true;
+            }
+            String path = url.substring("jdbc:sqlite:".length());
+            //只有file: URI带查询参数, 其他形式的?是文件名的一部分
+            if (path.startsWith("file:")) {
+                path = path.substring("file:".length());
+                int query = path.indexOf('?');
+                path = query < 0 ? path : path.substring(0, query);
+            }
+            return path.isEmpty();
+        }
+
+        private static long maxAllowedPacket(DataSource dataSource) {
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT @@max_allowed_packet")) {
+                return rs.next() ? rs.getLong(1) : DEFAULT_MAX_PACKET_BYTES;
+            } catch (SQLException e) {
+                return DEFAULT_MAX_PACKET_BYTES;
+            }
+        }
+
+        private DataSource newPool(Properties properties, int maxActive, int maxIdle, Metrics metrics, String name) {
+            return new ConnectionPool(this.driver.driverName, this.url, properties, maxActive, maxIdle,
+                    this.checkoutTimeout, this.validationQuery, this.validationInterval, this.statementCacheSize,
+                    metrics, metrics == null ? null : metrics.pool(name));
+        }
     }
 }
\ No newline at end of file
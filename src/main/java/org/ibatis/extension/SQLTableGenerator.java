@@ -10,14 +10,32 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressWarnings("DuplicatedCode")
 final class SQLTableGenerator implements TableGenerator {
+
+    //utf8下255个字符不超过InnoDB单列索引的长度限制
+    private static final int PREFIX_LENGTH = 255;
+
     @Override
     public void generate(Bind bind, Class<?> mapper, SqlSession session) {
         String tableName = Util.toTableName(mapper);
 
+        //前缀索引只比较前PREFIX_LENGTH个字符, 用作唯一索引会改变唯一性, 建表前拒绝
+        List<TableIndex> indexes = TableIndex.of(bind, tableName);
+        for (TableIndex index : indexes) {
+            for (Field field : index.fields) {
+                if (index.unique && isPrefixed(field)) {
+                    throw new IllegalStateException("Unique index on TEXT/BLOB column is not supported: " + bind.value().getName() + "." + field.getName()
+                            + ", declare a bounded type such as @TypeMapping(\"VARCHAR(255)\")");
+                }
+            }
+        }
+
         StringBuilder sql = new StringBuilder();
         sql.append("CREATE TABLE IF NOT EXISTS ");
         sql.append(Util.escape(tableName));
@@ -31,14 +49,7 @@ final class SQLTableGenerator implements TableGenerator {
                 continue;
             }
 
-            String jdbcType;
-            TypeMapping mapping;
-            if ((mapping = field.getAnnotation(TypeMapping.class)) != null) {
-                jdbcType = mapping.value();
-            } else {
-                jdbcType = TypeMapping.Constant.getMapping(field.getType());
-            }
-
+            String jdbcType = toJdbcType(field);
 
             String columnName = Util.toColumnName(field);
 
@@ -77,8 +88,55 @@ final class SQLTableGenerator implements TableGenerator {
         try {
             PreparedStatement ps = conn.prepareStatement(sql.toString());
             ps.execute();
+            ps.close();
         } catch (SQLException e) {
             throw new Error("Failed to create table: " + tableName, e);
         }
+
+        for (TableIndex index : indexes) {
+            createIndex(conn, tableName, index);
+        }
+    }
+
+    private void createIndex(Connection conn, String tableName, TableIndex index) {
+        //MySQL不支持 CREATE INDEX IF NOT EXISTS, 先查询是否已存在
+        try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?")) {
+            ps.setString(1, tableName);
+            ps.setString(2, index.name);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        } catch (SQLException e) {
+            throw new Error("Failed to create index: " + index.name, e);
+        }
+
+        List<String> columns = new ArrayList<>();
+        for (Field field : index.fields) {
+            //TEXT/BLOB列只能建立前缀索引
+            columns.add(Util.escape(Util.toColumnName(field)) + (isPrefixed(field) ? "(" + PREFIX_LENGTH + ")" : ""));
+        }
+
+        String sql = String.format("CREATE %sINDEX %s ON %s(%s)",
+                index.unique ? "UNIQUE " : "", Util.escape(index.name), Util.escape(tableName), String.join(",", columns));
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.execute();
+        } catch (SQLException e) {
+            throw new Error("Failed to create index: " + index.name, e);
+        }
+    }
+
+    private static boolean isPrefixed(Field field) {
+        String jdbcType = toJdbcType(field).toUpperCase();
+        return jdbcType.contains("TEXT") || jdbcType.contains("BLOB");
+    }
+
+    private static String toJdbcType(Field field) {
+        TypeMapping mapping;
+        if ((mapping = field.getAnnotation(TypeMapping.class)) != null) {
+            return mapping.value();
+        }
+        return TypeMapping.Constant.getMapping(field.getType());
     }
 }
@@ -11,6 +11,8 @@ import java.lang.reflect.Modifier;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressWarnings("DuplicatedCode")
 final class SQLiteTableGenerator implements TableGenerator {
@@ -60,6 +62,17 @@ final class SQLiteTableGenerator implements TableGenerator {
             ps.execute();
             ps.close();
 
+            for (TableIndex index : TableIndex.of(bind, tableName)) {
+                List<String> columns = new ArrayList<>();
+                for (Field field : index.fields) {
+                    columns.add(Util.escape(Util.toColumnName(field)));
+                }
+                ps = conn.prepareStatement(String.format("CREATE %sINDEX IF NOT EXISTS %s ON %s(%s);",
+                        index.unique ? "UNIQUE " : "", Util.escape(index.name), Util.escape(tableName), String.join(",", columns)));
+                ps.execute();
+                ps.close();
+            }
+
             //设置主键起始位置
             if (pk != null && id.value() > 0) {
                 ps = conn.prepareStatement("INSERT INTO sqlite_sequence(name, seq) SELECT ?, ?  WHERE NOT EXISTS(SELECT name FROM sqlite_sequence WHERE name = ?);");
@@ -68,6 +81,10 @@ final class SQLiteTableGenerator implements TableGenerator {
                 ps.setString(3, tableName);
                 ps.execute();
                 ps.close();
+            }
+
+            //注册完成后其他线程即可使用该mapper, 建表必须在此之前提交
+            if (!conn.getAutoCommit()) {
                 conn.commit();
             }
         } catch (SQLException e) {
@@ -0,0 +1,85 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.SqlSession;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 持有session的游标, 关闭时一并关闭session并归还连接. 行按需从ResultSet读取, 内存占用与结果行数无关.
+ */
+final class StreamingCursor<T> implements Cursor<T> {
+
+    private final Cursor<T> cursor;
+    //事务作用域内为null, session由作用域关闭
+    private final SqlSession session;
+    private boolean closed;
+
+    StreamingCursor(Cursor<T> cursor, SqlSession session) {
+        this.cursor = cursor;
+        this.session = session;
+    }
+
+    /**
+     * 按mapper方法的返回类型转换, 未关闭的Stream/Cursor会一直占用连接
+     */
+    static Object adapt(Cursor<?> cursor, SqlSession session, Class<?> returnType) {
+        StreamingCursor<?> streaming = new StreamingCursor<>(cursor, session);
+        return returnType == Stream.class ? streaming.stream() : streaming;
+    }
+
+    Stream<T> stream() {
+        //单列查询的NULL值映射为null行
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(cursor.iterator(), Spliterator.ORDERED);
+        return StreamSupport.stream(spliterator, false).onClose(this::closeUnchecked);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return cursor.isOpen();
+    }
+
+    @Override
+    public boolean isConsumed() {
+        return cursor.isConsumed();
+    }
+
+    @Override
+    public int getCurrentIndex() {
+        return cursor.getCurrentIndex();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return cursor.iterator();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            cursor.close();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private void closeUnchecked() {
+        try {
+            close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
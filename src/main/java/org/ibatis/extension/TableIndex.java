@@ -0,0 +1,72 @@
+package org.ibatis.extension;
+
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Index;
+import org.ibatis.extension.annotations.Unique;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * 实体上通过 {@link Index}/{@link Unique} 声明的索引
+ */
+final class TableIndex {
+
+    final String name;
+    final boolean unique;
+    final List<Field> fields;
+
+    private TableIndex(String name, boolean unique, List<Field> fields) {
+        this.name = name;
+        this.unique = unique;
+        this.fields = fields;
+    }
+
+    static List<TableIndex> of(Bind bind, String tableName) {
+        Map<String, Field> fieldMap = new LinkedHashMap<>();
+        for (Field field : bind.value().getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                fieldMap.put(field.getName(), field);
+            }
+        }
+
+        List<TableIndex> indexes = new ArrayList<>();
+        for (Field field : fieldMap.values()) {
+            if (field.getAnnotation(Unique.class) != null) {
+                indexes.add(create(tableName, "", true, Collections.singletonList(field)));
+            }
+            for (Index index : field.getAnnotationsByType(Index.class)) {
+                indexes.add(create(tableName, index.name(), index.unique(), Collections.singletonList(field)));
+            }
+        }
+
+        //实体类上的联合索引
+        for (Index index : bind.value().getAnnotationsByType(Index.class)) {
+            if (index.value().length == 0) {
+                throw new IllegalStateException("Missing fields of @Index on " + bind.value().getName());
+            }
+            List<Field> fields = new ArrayList<>();
+            for (String fieldName : index.value()) {
+                Field field;
+                if ((field = fieldMap.get(fieldName)) == null) {
+                    throw new IllegalStateException("Unknown field of @Index: " + bind.value().getName() + "." + fieldName);
+                }
+                fields.add(field);
+            }
+            indexes.add(create(tableName, index.name(), index.unique(), fields));
+        }
+        return indexes;
+    }
+
+    private static TableIndex create(String tableName, String name, boolean unique, List<Field> fields) {
+        if (name.isEmpty()) {
+            StringBuilder sb = new StringBuilder(tableName);
+            for (Field field : fields) {
+                sb.append("_").append(Util.toColumnName(field));
+            }
+            name = sb.append(unique ? "_uk" : "_idx").toString();
+        }
+        return new TableIndex(name, unique, fields);
+    }
+}
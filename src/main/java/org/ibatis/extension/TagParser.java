@@ -6,19 +6,30 @@ import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
 import org.ibatis.extension.annotations.Bind;
 import org.ibatis.extension.annotations.DateFormat;
-import org.ibatis.extension.annotations.Id;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 final class TagParser {
 
+    //单次扫描即可展开全部标签, 并为 column=#{...} 形式的列名加上转义符
+    private static final Pattern TAG_PATTERN = Pattern.compile(
+            "@(columns|notbetween|between|within|without|page)\\b(?:\\(([^)]*)\\))?|@table\\b|(?<=\\s)(\\w+)(?=\\s*=\\s*#\\{[^}]*})");
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+    private static final String DEFAULT_DATE_STYLE = "'%Y-%m-%d'";
+    //select * from @table where id=#{id}: 只按主键等值查询整行
+    private static final Pattern ID_LOOKUP_PATTERN = Pattern.compile(
+            "(?i)\\s*select\\s*(?:\\*|@columns\\b(?!\\())\\s*from\\s+@table\\s+where\\s+`?(\\w+)`?\\s*=\\s*#\\{[^}]*}\\s*;?\\s*");
+
     private final Driver driver;
+    private final Map<Method, Map<Annotation, Annotation>> cache = new ConcurrentHashMap<>();
+    private final Set<Method> idLookups = ConcurrentHashMap.newKeySet();
 
     TagParser(Driver driver) {
         this.driver = driver;
@@ -28,7 +39,19 @@ final class TagParser {
         if (!(annotation instanceof Insert) && !(annotation instanceof Delete) && !(annotation instanceof Update) && !(annotation instanceof Select)) {
             return annotation;
         }
+        //同一个方法的注解在解析期间会被多次包装, 展开结果按Method缓存; 实例由DefaultMapperRegistry持有, 随Configuration释放
+        Map<Annotation, Annotation> replaced = Util.computeIfAbsent(cache, method, k -> new ConcurrentHashMap<>());
+        return Util.computeIfAbsent(replaced, annotation, k -> doReplaceTags(method, k));
+    }
+
+    /**
+     * 方法是否为按@Id等值查询单个实体, 在展开标签时识别
+     */
+    boolean isIdLookup(Method method) {
+        return idLookups.contains(method);
+    }
 
+    private Annotation doReplaceTags(Method method, Annotation annotation) {
         String sql = "";
         String databaseId = "";
 
@@ -38,7 +61,13 @@ final class TagParser {
             if (strings.length != 1) {
                 return annotation;
             }
-            sql = SQL.OMIT.equals(strings[0]) ? doOmitFromInsert(method) : strings[0];
+            if (SQL.OMIT.equals(strings[0])) {
+                sql = doOmitFromInsert(method);
+            } else if (SQL.UPSERT.equals(strings[0])) {
+                sql = doUpsert(method);
+            } else {
+                sql = strings[0];
+            }
         }
 
         if (annotation instanceof Delete) {
@@ -74,33 +103,68 @@ final class TagParser {
             throw new IllegalStateException("Missing @Bind: " + type.getName());
         }
 
-        //解析 @columns标签
-        sql = doColumns(bind, sql);
-
-        //解析 @between 和 @notbetween标签
-        sql = doBetween(method, sql);
-        //where
-
-        //解析 @within标签
-        sql = doWithin(bind, method, sql);
-
-        //解析 @without标签
-        sql = doWithout(bind, method, sql);
-
-        //为所有column加上转义符
-        sql = sql.replaceAll("(?<!`)(?<=\\s)(?!`)(\\w+)(?<!`)(?=\\s*=\\s*#\\{[^}]*\\})", "`$1`");
-
-        String tableName = Util.toTableName(method.getDeclaringClass());
+        if (annotation instanceof Select && isIdLookup(method, bind, sql)) {
+            idLookups.add(method);
+        }
 
-        //替换@table标签为真正的表名
-        sql = sql.replace("@table", Util.escape(tableName));
+        String tableName = Util.escape(Util.toTableName(type));
+
+        Matcher matcher = TAG_PATTERN.matcher(sql);
+        StringBuilder sb = new StringBuilder(sql.length() + 64);
+        while (matcher.find()) {
+            String tag = matcher.group(1);
+            String replacement;
+            if (matcher.group(3) != null) {
+                //为column加上转义符
+                replacement = Util.escape(matcher.group(3));
+            } else if (tag == null) {
+                //替换@table标签为真正的表名
+                replacement = tableName;
+            } else {
+                String[] args = matcher.group(2) == null ? null : WHITESPACE_PATTERN.matcher(matcher.group(2)).replaceAll("").split(",");
+                switch (tag) {
+                    case "columns":
+                        replacement = doColumns(bind, args);
+                        break;
+
+                    case "between":
+                    case "notbetween":
+                        replacement = doBetween(method, "between".equals(tag), args);
+                        break;
+
+                    case "page":
+                        replacement = doPage(bind, args);
+                        break;
+
+                    default:
+                        replacement = doWithin("within".equals(tag), args);
+                        break;
+                }
+                if (replacement == null) {
+                    replacement = matcher.group();
+                }
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(sb);
 
         return new AnnotationBuilder<>(annotation.annotationType())
-                .putMember("value", new String[]{sql})
+                .putMember("value", new String[]{sb.toString()})
                 .putMember("databaseId", databaseId)
                 .build();
     }
 
+    private static boolean isIdLookup(Method method, Bind bind, String sql) {
+        Field idField;
+        Matcher matcher = ID_LOOKUP_PATTERN.matcher(sql);
+        if (!matcher.matches() || (idField = Util.toIdField(bind)) == null) {
+            return false;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        return matcher.group(1).equalsIgnoreCase(Util.toColumnName(idField)) && method.getReturnType() == bind.value()
+                && parameterTypes.length == 1 && parameterTypes[0] != bind.value();
+    }
+
     private String doOmitFromInsert(Method method) {
         Bind bind;
         Class<?> type = method.getDeclaringClass();
@@ -108,286 +172,277 @@ final class TagParser {
             throw new IllegalStateException("Missing @Bind: " + type.getName());
         }
 
+        //批量插入同样生成单行模板, 由MultiRowSqlSource展开为多行VALUES
+        List<String> columns = new ArrayList<>();
         List<String> params = new ArrayList<>();
-        Arrays.stream(bind.value().getDeclaredFields()).forEach(field -> {
-            if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()) ||
-                    field.getAnnotation(Id.class) != null) {
-                return;
-            }
+        for (Field field : Util.toInsertFields(bind)) {
+            columns.add(Util.escape(Util.toColumnName(field)));
             params.add("#{" + field.getName() + "}");
-        });
-
-        String temp = String.valueOf(params);
-        temp = temp.substring(1, temp.length() - 1).replaceAll("\\s+", "");
-        return String.format("INSERT INTO @table(%s) VALUES(%s)", temp.replaceAll("#\\{(.+?)\\}", "`$1`"), temp);
+        }
+        return String.format("INSERT INTO @table(%s) VALUES(%s)", String.join(",", columns), String.join(",", params));
     }
 
-    private String doOmitFromUpdate(Method method) {
+    /**
+     * 插入全部列, 与主键或任一唯一索引冲突时更新除@Id外的列. 冲突子句位于VALUES之后且不含参数, 批量时同样由MultiRowSqlSource展开
+     */
+    private String doUpsert(Method method) {
         Bind bind;
         Class<?> type = method.getDeclaringClass();
         if ((bind = type.getAnnotation(Bind.class)) == null) {
             throw new IllegalStateException("Missing @Bind: " + type.getName());
         }
 
-        final String[] pk = {null};
-        List<String> params = new ArrayList<>();
-
-        Arrays.stream(bind.value().getDeclaredFields()).forEach(field -> {
-            String columnName = field.getName();
-            if (field.getAnnotation(Id.class) != null) {
-                pk[0] = Util.escape(columnName) + "=#{" + columnName + "}";
-                return;
+        //冲突目标: 各唯一索引, 最后是主键
+        List<List<Field>> keys = new ArrayList<>();
+        for (TableIndex index : TableIndex.of(bind, Util.toTableName(type))) {
+            if (index.unique) {
+                keys.add(index.fields);
             }
-            params.add(Util.escape(columnName) + "=#{" + field.getName() + "}");
-        });
-
-        if (pk[0] == null) {
-            throw new IllegalStateException("Missing @Id: " + bind.value().getName());
+        }
+        Field idField = Util.toIdField(bind);
+        if (idField != null) {
+            keys.add(Collections.singletonList(idField));
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalStateException("Missing @Id or unique index: " + bind.value().getName());
         }
 
-        String temp = String.valueOf(params);
-        temp = temp.substring(1, temp.length() - 1).replaceAll("\\s+", "");
-        return String.format("UPDATE @table SET %s WHERE %s", temp, pk[0]);
-    }
-
-    private String doColumns(Bind bind, String sql) {
-        Matcher matcher = Pattern.compile("@columns\\(.*?\\)|@columns").matcher(sql);
-        if (matcher.find()) {
-            final String tag = matcher.group();
-
-            Set<String> exclude = new HashSet<>();
-            String temp = tag.replaceAll("@columns|\\(|\\)|\\s+", "");
-            if (!temp.isEmpty()) {
-                exclude.addAll(Arrays.asList(temp.split(",")));
-            }
-
-            List<String> columnsName = new ArrayList<>();
-            for (Field field : bind.value().getDeclaredFields()) {
-                String fieldName = field.getName();
-                if (!exclude.contains(fieldName)) {
-                    columnsName.add(fieldName);
+        List<String> columns = new ArrayList<>();
+        List<String> params = new ArrayList<>();
+        if (idField != null) {
+            //基本类型的id为0表示未赋值, 以NULL插入由数据库生成
+            columns.add(Util.escape(Util.toColumnName(idField)));
+            params.add(idField.getType().isPrimitive() ? "NULLIF(#{" + idField.getName() + "},0)" : "#{" + idField.getName() + "}");
+        }
+        List<String> updates = new ArrayList<>();
+        for (Field field : Util.toInsertFields(bind)) {
+            String column = Util.escape(Util.toColumnName(field));
+            columns.add(column);
+            params.add("#{" + field.getName() + "}");
+            updates.add(column + "=" + (driver == Driver.MYSQL ? "VALUES(" + column + ")" : "excluded." + column));
+        }
+        String insert = String.format("INSERT INTO @table(%s) VALUES(%s)", String.join(",", columns), String.join(",", params));
+
+        switch (driver) {
+            case MYSQL:
+                //VALUES(col)兼容5.7, 8.0.20起仅为弃用警告; 没有可更新的列时以id=id表示忽略
+                if (updates.isEmpty()) {
+                    String id = Util.escape(Util.toColumnName(keys.get(0).get(0)));
+                    updates.add(id + "=" + id);
                 }
-            }
-
-            temp = String.valueOf(columnsName);
-            temp = temp.substring(1, temp.length() - 1).replaceAll("\\s+", "");
-            sql = sql.replace(tag, temp);
+                return insert + " ON DUPLICATE KEY UPDATE " + String.join(",", updates);
+
+            case SQLITE:
+                //SQLite 3.35起可以有多个ON CONFLICT子句, 按顺序匹配
+                StringBuilder sb = new StringBuilder(insert);
+                String action = updates.isEmpty() ? "DO NOTHING" : "DO UPDATE SET " + String.join(",", updates);
+                for (List<Field> key : keys) {
+                    List<String> target = new ArrayList<>();
+                    for (Field field : key) {
+                        target.add(Util.escape(Util.toColumnName(field)));
+                    }
+                    sb.append(" ON CONFLICT(").append(String.join(",", target)).append(") ").append(action);
+                }
+                return sb.toString();
 
+            default:
+                throw new IllegalStateException("Upsert is not supported by " + driver);
         }
-        return sql;
     }
 
-    private String doBetween(Method method, String sql) {
-        Matcher matcher = Pattern.compile("(@between\\(.*?\\)|@notbetween\\(.*?\\))").matcher(sql);
-        if (matcher.find()) {
-            final String tag = matcher.group().toLowerCase();
-
-            String items = tag.replaceAll("(@between|@notbetween)|\\(|\\)|\\s+", "");
-            String[] args = items.split(",");
-
-            if (args.length != 3) return sql;
-
-            String column = args[0], start = args[1], end = args[2];
+    private String doOmitFromUpdate(Method method) {
+        Bind bind;
+        Class<?> type = method.getDeclaringClass();
+        if ((bind = type.getAnnotation(Bind.class)) == null) {
+            throw new IllegalStateException("Missing @Bind: " + type.getName());
+        }
 
-            //日期样式
-            String style = "'%Y-%m-%d'";
-            DateFormat dateFormat;
-            if ((dateFormat = method.getAnnotation(DateFormat.class)) != null) {
-                style = dateFormat.value();
-            }
+        Field idField;
+        if ((idField = Util.toIdField(bind)) == null) {
+            throw new IllegalStateException("Missing @Id: " + bind.value().getName());
+        }
 
-            //为日期样式加上单引号
-            style = style.replaceAll("(?!\\')" + style, "'$0'");
+        List<String> params = new ArrayList<>();
+        for (Field field : Util.toInsertFields(bind)) {
+            params.add(Util.escape(Util.toColumnName(field)) + "=#{" + field.getName() + "}");
+        }
 
-            String temp = "";
+        String pk = Util.escape(Util.toColumnName(idField)) + "=#{" + idField.getName() + "}";
+        return String.format("UPDATE @table SET %s WHERE %s", String.join(",", params), pk);
+    }
 
-            switch (driver) {
-                case MYSQL:
-                    temp = temp.concat("FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + ")," + style + ")");
-                    temp = temp.concat(tag.contains("@between") ? " BETWEEN " : " NOT BETWEEN ");
-                    temp = temp.concat(String.format("CAST(%s as DATE) AND CAST(%s as DATE)", start, end));
-                    sql = sql.replace(tag, temp);
-                    break;
+    private String doColumns(Bind bind, String[] args) {
+        Set<String> exclude = new HashSet<>();
+        if (args != null) {
+            exclude.addAll(Arrays.asList(args));
+        }
 
-                case SQLITE:
-                    temp = temp.concat("strftime(" + style + ",datetime(" + column + "/1000,'unixepoch','localtime'))");
-                    temp = temp.concat(tag.contains("@between") ? " BETWEEN " : " NOT BETWEEN ");
-                    temp = temp.concat(String.format("%s AND %s", start, end));
-                    sql = sql.replace(tag, temp);
-                    break;
+        List<String> columnsName = new ArrayList<>();
+        for (Field field : bind.value().getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                continue;
+            }
+            if (!exclude.contains(field.getName())) {
+                columnsName.add(Util.toColumnName(field));
+            }
+        }
+        return String.join(",", columnsName);
+    }
 
-                default:
-                    break;
+    /**
+     * 键集分页: 从上一页最后一个键之后按键顺序取n行, 走索引定位, 耗时与页深度无关.
+     * 展开结果带ORDER BY与LIMIT, 必须位于语句末尾
+     */
+    private String doPage(Bind bind, String[] args) {
+        String column, after, size;
+        if (args != null && args.length == 3) {
+            column = args[0];
+            after = args[1];
+            size = args[2];
+        } else if (args != null && args.length == 2) {
+            Field idField;
+            if ((idField = Util.toIdField(bind)) == null) {
+                throw new IllegalStateException("Missing @Id: " + bind.value().getName());
             }
+            column = Util.escape(Util.toColumnName(idField));
+            after = args[0];
+            size = args[1];
+        } else {
+            return null;
         }
-        return sql;
+        return column + " > " + after + " ORDER BY " + column + " LIMIT " + size;
     }
 
-    private String doWithin(Bind bind, Method method, String sql) {
-        Matcher matcher = Pattern.compile("@within\\(.*?\\)").matcher(sql);
-        if (matcher.find()) {
-            final String tag = matcher.group();
-            String[] args = tag.replaceAll("@within|\\(|\\)|\\s+", "").split(",");
+    private String doBetween(Method method, boolean between, String[] args) {
+        if (args == null || args.length != 3) {
+            return null;
+        }
+
+        String column = args[0], start = args[1], end = args[2];
 
-            if (args.length != 3) return sql;
+        //日期样式
+        String style = DEFAULT_DATE_STYLE;
+        DateFormat dateFormat;
+        if ((dateFormat = method.getAnnotation(DateFormat.class)) != null) {
+            style = dateFormat.value();
+        }
 
-            String column = args[0], unit = args[1], value = args[2];
+        //为日期样式加上单引号
+        if (!style.startsWith("'")) {
+            style = "'" + style + "'";
+        }
 
-            String temp = "";
+        //默认样式按天比较, 可直接换算为列上的范围条件; 自定义样式无法反推范围, 仍对列格式化后比较
+        if (DEFAULT_DATE_STYLE.equals(style)) {
             switch (driver) {
                 case MYSQL:
-                    switch (unit.toUpperCase()) {
-                        case "SECOND":
-                        case "MINUTE":
-                        case "HOUR":
-                            temp = temp.concat("ABS(TIMESTAMPDIFF(" + unit.toUpperCase() + ", NOW(), FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + ")))) <= " + value);
-                            break;
-
-                        case "DAY":
-                            temp = temp.concat("DATEDIFF(NOW(),FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + "))) <= " + value);
-                            break;
-
-                        case "MONTH":
-                            temp = temp.concat("MONTH(" + column + ") >= MONTH(DATE_SUB(NOW(),INTERVAL " + value + " MONTH))");
-                            break;
-
-                        case "YEAR":
-                            temp = temp.concat("YEAR(" + column + ") >= YEAR(DATE_SUB(NOW(),INTERVAL " + value + " YEAR))");
-                            break;
-
-                        default:
-                            break;
-                    }
-                    break;
+                    return range(column, between,
+                            "CAST(" + start + " as DATE)",
+                            "CAST(" + end + " as DATE) + INTERVAL 1 DAY");
 
                 case SQLITE:
-                    switch (unit.toUpperCase()) {
-                        case "SECOND":
-                        case "MINUTE":
-                        case "HOUR":
-
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" BETWEEN ");
-                            temp = temp.concat("datetime('now','localtime','-'||abs(0-" + value + ")||' " + unit.toLowerCase() + "')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','localtime','+'||abs(" + value + "+1)||' " + unit.toLowerCase() + "')");
-                            break;
-
-                        case "DAY":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" BETWEEN ");
-                            temp = temp.concat("datetime('now','start of day','-'||abs(0-" + value + ")||' day')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of day','+'||abs(" + value + "+1)||' day')");
-                            break;
-
-                        case "MONTH":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" BETWEEN ");
-                            temp = temp.concat("datetime('now','start of month','-'||abs(0-" + value + ")||' month')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of month','+'||abs(" + value + "+1)||' month')");
-                            break;
-
-                        case "YEAR":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" BETWEEN ");
-                            temp = temp.concat("datetime('now','start of year','-'||abs(0-" + value + ")||' year')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of year','+'||abs(" + value + "+1)||' year')");
-                            break;
-                    }
-                    break;
+                    return range(column, between,
+                            "strftime('%s'," + start + ",'utc')*1000",
+                            "strftime('%s'," + end + ",'+1 day','utc')*1000");
 
                 default:
-                    break;
+                    return "";
             }
-            sql = sql.replace(tag, temp);
         }
-        return sql;
-    }
 
-    private String doWithout(Bind bind, Method method, String sql) {
-        Matcher matcher = Pattern.compile("@without\\(.*?\\)").matcher(sql);
-        if (matcher.find()) {
-            final String tag = matcher.group();
-            String[] args = tag.replaceAll("@without|\\(|\\)|\\s+", "").split(",");
+        String temp = "";
 
-            if (args.length != 3) return sql;
+        switch (driver) {
+            case MYSQL:
+                temp = temp.concat("FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + ")," + style + ")");
+                temp = temp.concat(between ? " BETWEEN " : " NOT BETWEEN ");
+                temp = temp.concat(String.format("CAST(%s as DATE) AND CAST(%s as DATE)", start, end));
+                break;
 
-            String column = args[0], unit = args[1], value = args[2];
+            case SQLITE:
+                temp = temp.concat("strftime(" + style + ",datetime(" + column + "/1000,'unixepoch','localtime'))");
+                temp = temp.concat(between ? " BETWEEN " : " NOT BETWEEN ");
+                temp = temp.concat(String.format("%s AND %s", start, end));
+                break;
 
-            String temp = "";
-            switch (driver) {
-                case MYSQL:
-
-                    switch (unit.toUpperCase()) {
-                        case "SECOND":
-                        case "MINUTE":
-                        case "HOUR":
-                            temp = temp.concat("ABS(TIMESTAMPDIFF(" + unit.toUpperCase() + ", NOW(), FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + ")))) > " + value);
-                            break;
+            default:
+                break;
+        }
+        return temp;
+    }
 
-                        case "DAY":
-                            temp = temp.concat("DATEDIFF(NOW(),FROM_UNIXTIME(UNIX_TIMESTAMP(" + column + "))) > " + value);
-                            break;
+    private String doWithin(boolean within, String[] args) {
+        if (args == null || args.length != 3) {
+            return null;
+        }
 
-                        case "MONTH":
-                            temp = temp.concat("MONTH(" + column + ") < MONTH(DATE_SUB(NOW(),INTERVAL " + value + " MONTH))");
-                            break;
+        String column = args[0], unit = args[1].toUpperCase(), value = args[2];
+
+        //边界只依赖当前时间, 列不经过任何函数, 以便使用索引
+        switch (driver) {
+            case MYSQL:
+                switch (unit) {
+                    case "SECOND":
+                    case "MINUTE":
+                    case "HOUR":
+                        //TIMESTAMPDIFF向零取整, |diff| <= value 即严格落在 ±(value+1) 个单位之内
+                        String lower = "NOW() - INTERVAL (" + value + "+1) " + unit;
+                        String upper = "NOW() + INTERVAL (" + value + "+1) " + unit;
+                        return within
+                                ? column + " > " + lower + " AND " + column + " < " + upper
+                                : "(" + column + " <= " + lower + " OR " + column + " >= " + upper + ")";
+
+                    case "DAY":
+                        return since(column, within, "CURDATE() - INTERVAL " + value + " DAY");
+
+                    case "MONTH":
+                        return since(column, within, "DATE_FORMAT(NOW() - INTERVAL " + value + " MONTH,'%Y-%m-01')");
+
+                    case "YEAR":
+                        return since(column, within, "MAKEDATE(YEAR(NOW()) - " + value + ",1)");
+
+                    default:
+                        return null;
+                }
 
-                        case "YEAR":
-                            temp = temp.concat("YEAR(" + column + ") < YEAR(DATE_SUB(NOW(),INTERVAL " + value + " YEAR))");
-                            break;
+            case SQLITE:
+                //列中保存的是毫秒时间戳, 原先按本地时间的秒精度比较, 这里把两端边界换算回UTC毫秒
+                String start;
+                switch (unit) {
+                    case "SECOND":
+                    case "MINUTE":
+                    case "HOUR":
+                        start = "'now','localtime'";
+                        break;
+
+                    case "DAY":
+                    case "MONTH":
+                    case "YEAR":
+                        start = "'now','start of " + unit.toLowerCase() + "'";
+                        break;
+
+                    default:
+                        return null;
+                }
+                String lower = "strftime('%s'," + start + ",'-'||abs(0-" + value + ")||' " + unit.toLowerCase() + "','utc')*1000";
+                String upper = "(strftime('%s'," + start + ",'+'||abs(" + value + "+1)||' " + unit.toLowerCase() + "','utc')+1)*1000";
+                return range(column, within, lower, upper);
 
-                        default:
-                            break;
-                    }
-                    break;
+            default:
+                return "";
+        }
+    }
 
-                case SQLITE:
-                    switch (unit.toUpperCase()) {
-                        case "SECOND":
-                        case "MINUTE":
-                        case "HOUR":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" NOT BETWEEN ");
-                            temp = temp.concat("datetime('now','localtime','-'||abs(0-" + value + ")||' " + unit.toLowerCase() + "')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','localtime','+'||abs(" + value + "+1)||' " + unit.toLowerCase() + "')");
-                            break;
-
-                        case "DAY":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" NOT BETWEEN ");
-                            temp = temp.concat("datetime('now','start of day','-'||abs(0-" + value + ")||' day')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of day','+'||abs(" + value + "+1)||' day')");
-                            break;
-
-                        case "MONTH":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" NOT BETWEEN ");
-                            temp = temp.concat("datetime('now','start of month','-'||abs(0-" + value + ")||' month')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of month','+'||abs(" + value + "+1)||' month')");
-                            break;
-
-                        case "YEAR":
-                            temp = temp.concat("datetime(timestamp/1000, 'unixepoch', 'localtime')");
-                            temp = temp.concat(" NOT BETWEEN ");
-                            temp = temp.concat("datetime('now','start of year','-'||abs(0-" + value + ")||' year')");
-                            temp = temp.concat(" AND ");
-                            temp = temp.concat("datetime('now','start of year','+'||abs(" + value + "+1)||' year')");
-                            break;
-                    }
-                    break;
+    /**
+     * 半开区间 [lower, upper), 取反时为区间之外
+     */
+    private static String range(String column, boolean inside, String lower, String upper) {
+        return inside
+                ? column + " >= " + lower + " AND " + column + " < " + upper
+                : "(" + column + " < " + lower + " OR " + column + " >= " + upper + ")";
+    }
 
-                default:
-                    break;
-            }
-            sql = sql.replace(tag, temp);
-        }
-        return sql;
+    private static String since(String column, boolean inside, String lower) {
+        return column + (inside ? " >= " : " < ") + lower;
     }
 }
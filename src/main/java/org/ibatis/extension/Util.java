@@ -1,49 +1,40 @@
 package org.ibatis.extension;
 
-import org.apache.ibatis.executor.keygen.KeyGenerator;
-import org.apache.ibatis.mapping.MappedStatement;
-import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.reflection.Reflector;
+import org.apache.ibatis.reflection.invoker.Invoker;
+import org.apache.ibatis.session.Configuration;
+import org.ibatis.extension.annotations.AsyncAppend;
 import org.ibatis.extension.annotations.Bind;
 import org.ibatis.extension.annotations.ColumnMapping;
+import org.ibatis.extension.annotations.Id;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 final class Util {
 
-    private static final Map<String, Class<?>> MAPPER_CLASS_CACHE_MAP = new ConcurrentHashMap<>();
-    private static final Map<String, Method> MAPPER_METHOD_CACHE_MAP = new ConcurrentHashMap<>();
     private static final Map<Class<?>, Map<String, Field>> CLASS_FIELD_CACHE_MAP = new ConcurrentHashMap<>();
 
-    static Class<?> cachedClass(String className) {
-        return computeIfAbsent(MAPPER_CLASS_CACHE_MAP, className, s -> {
-            try {
-                return Thread.currentThread().getContextClassLoader().loadClass(s);
-            } catch (ClassNotFoundException e) {
-                throw new Error("Not found class for " + s, e);
-            }
-        });
-    }
-
-    static Method cachedMethod(MappedStatement ms) {
-        String id = ms.getId();
-        Class<?> clazz = cachedClass(id.substring(0, id.lastIndexOf('.')));
-        return computeIfAbsent(MAPPER_METHOD_CACHE_MAP, id.substring(id.lastIndexOf('.') + 1), s -> {
-            for (Method method : clazz.getDeclaredMethods()) {
-                if (method.getName().equals(s)) {
-                    return method;
-                }
-            }
-            throw new Error("No such method in " + clazz.getName());
-        });
-    }
-
     static Field cachedField(Class<?> clazz, String fieldName) {
         Map<String, Field> fieldMap = CLASS_FIELD_CACHE_MAP.computeIfAbsent(clazz, k -> new ConcurrentHashMap<>());
         return fieldMap.computeIfAbsent(fieldName, s -> {
@@ -65,37 +56,112 @@ final class Util {
         return map.computeIfAbsent(key, mappingFunction);
     }
 
-    static void setResultMaps(MappedStatement statement, List<ResultMap> resultMaps) {
-        try {
-            cachedField(MappedStatement.class, "resultMaps").set(statement, resultMaps);
-        } catch (Exception e) {
-            throw new Error("Failed setResultMaps: " + e.getMessage(), e);
+    /**
+     * 是否为@omit生成的insert/update
+     */
+    static boolean isOmit(Method method) {
+        String[] value;
+        Insert insert;
+        Update update;
+        if ((insert = method.getAnnotation(Insert.class)) != null) {
+            value = insert.value();
+        } else if ((update = method.getAnnotation(Update.class)) != null) {
+            value = update.value();
+        } else {
+            return false;
         }
+        return value.length == 1 && SQL.OMIT.equals(value[0]);
     }
 
-    static void setKeyGenerator(MappedStatement statement, KeyGenerator keyGenerator) {
-        try {
-            cachedField(MappedStatement.class, "keyGenerator").set(statement, keyGenerator);
-        } catch (Exception e) {
-            throw new Error("Failed setKeyGenerator: " + e.getMessage(), e);
+    /**
+     * 是否为@upsert生成的插入或更新
+     */
+    static boolean isUpsert(Method method) {
+        Insert insert = method.getAnnotation(Insert.class);
+        return insert != null && insert.value().length == 1 && SQL.UPSERT.equals(insert.value()[0]);
+    }
+
+    static boolean isBulkOmit(Method method) {
+        if (!isOmit(method) && !isUpsert(method)) {
+            return false;
         }
+        Class<?>[] types = method.getParameterTypes();
+        return types.length == 1 && (types[0].isArray() || Collection.class.isAssignableFrom(types[0]));
     }
 
-    static void setKeyProperty(MappedStatement statement, String keyProperty, String keyColumn) {
-        try {
-            cachedField(MappedStatement.class, "keyProperties").set(statement, delimitedStringToArray(keyProperty));
-            cachedField(MappedStatement.class, "keyColumns").set(statement, delimitedStringToArray(keyColumn));
-        } catch (Exception e) {
-            throw new Error("Failed setKeyProperty: " + e.getMessage(), e);
+    /**
+     * {@link AsyncAppend} mapper上返回void的单行@omit插入, 由后台线程成批写入
+     */
+    static boolean isAppend(Class<?> mapper, Method method) {
+        return mapper.isAnnotationPresent(AsyncAppend.class) && method.isAnnotationPresent(Insert.class)
+                && isOmit(method) && !isBulkOmit(method) && method.getReturnType() == void.class;
+    }
+
+    /**
+     * 返回Stream/Cursor的方法以游标逐行读取, session在结果关闭后才释放; 单连接的池中遍历时的嵌套调用由ConnectionPool直接拒绝.
+     * Iterator没有close, 提前结束遍历会一直占用连接, 不支持
+     */
+    static boolean isStreaming(Method method) {
+        Class<?> returnType = method.getReturnType();
+        return returnType == Stream.class || returnType == Cursor.class;
+    }
+
+    /**
+     * 返回CompletableFuture/CompletionStage的方法在后台执行, 结果类型按其类型参数解析
+     */
+    static boolean isAsync(Method method) {
+        Class<?> returnType = method.getReturnType();
+        return returnType == CompletableFuture.class || returnType == CompletionStage.class;
+    }
+
+    /**
+     * CompletableFuture&lt;T&gt;与CompletionStage&lt;T&gt;取出T, 其他类型原样返回
+     */
+    static Type unwrapAsync(Type type) {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            Type rawType = parameterizedType.getRawType();
+            if (rawType == CompletableFuture.class || rawType == CompletionStage.class) {
+                return parameterizedType.getActualTypeArguments()[0];
+            }
         }
+        return type;
     }
 
-    private static String[] delimitedStringToArray(String in) {
-        if (in == null || in.trim().length() == 0) {
-            return null;
-        } else {
-            return in.split(",");
+    static Class<?> toRawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
         }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        if (type instanceof GenericArrayType) {
+            return Array.newInstance(toRawType(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        }
+        return Object.class;
+    }
+
+    static Iterable<?> toIterable(Object elements) {
+        if (elements instanceof Iterable) {
+            return (Iterable<?>) elements;
+        }
+        if (elements instanceof Object[]) {
+            return Arrays.asList((Object[]) elements);
+        }
+        throw new IllegalArgumentException("Not a collection or array: " + elements);
+    }
+
+    static List<?> toList(Object elements) {
+        if (elements instanceof List) {
+            return (List<?>) elements;
+        }
+        if (elements instanceof Collection) {
+            return new ArrayList<>((Collection<?>) elements);
+        }
+        if (elements instanceof Object[]) {
+            return Arrays.asList((Object[]) elements);
+        }
+        throw new IllegalArgumentException("Not a collection or array: " + elements);
     }
 
     static String toTableName(Class<?> clazz) {
@@ -121,6 +187,30 @@ final class Util {
         return name;
     }
 
+    static Field toIdField(Bind bind) {
+        return toIdField(bind.value());
+    }
+
+    static Field toIdField(Class<?> entityType) {
+        for (Field field : entityType.getDeclaredFields()) {
+            if (field.getAnnotation(Id.class) != null) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    static List<Field> toInsertFields(Bind bind) {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : bind.value().getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) &&
+                    field.getAnnotation(Id.class) == null) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
     static Map<Field, ColumnMapping> toColumnMappingMap(Bind bind) {
         Map<Field, ColumnMapping> columnMappingMap = new HashMap<>();
         for (Field field : bind.value().getDeclaredFields()) {
@@ -134,6 +224,25 @@ final class Util {
         return columnMappingMap;
     }
 
+    /**
+     * 按Reflector逐个属性复制实体, 用于缓存中的实体与调用方持有的对象相互隔离
+     */
+    static Object copyEntity(Configuration configuration, Object entity) {
+        Reflector reflector = configuration.getReflectorFactory().findForClass(entity.getClass());
+        Object copy = configuration.getObjectFactory().create(entity.getClass());
+        try {
+            for (String property : reflector.getSetablePropertyNames()) {
+                if (reflector.hasGetter(property)) {
+                    Invoker getter = reflector.getGetInvoker(property);
+                    reflector.getSetInvoker(property).invoke(copy, new Object[]{getter.invoke(entity, null)});
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot copy " + entity.getClass().getName(), e);
+        }
+        return copy;
+    }
+
     static String escape(String text) {
         return String.format("`%s`", text);
     }
@@ -0,0 +1,31 @@
+package org.ibatis.extension.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * 只追加的表: mapper上返回void的单行@omit插入不再同步执行, 实体放入有界队列后立即返回,
+ * 由后台线程以多行VALUES语句成批写入, 每批一个事务. 队列已满时调用方等待.
+ * 插入的id不会回写到实体, 放入队列后不应再修改该实体; 需要确认写入时调用{@link org.ibatis.extension.SQL#flush()}.
+ * 在transaction/batch作用域内调用时仍同步执行并加入该事务.
+ * 后台线程是守护线程, 进程退出前应调用{@link org.ibatis.extension.SQL#close()}(或flush)写出队列中的行; 重试后仍失败的行记录日志后丢弃.
+ */
+@Inherited
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AsyncAppend {
+
+    /**
+     * 队列中等待写入的最大行数
+     */
+    int capacity() default 10000;
+
+    /**
+     * 每个事务最多写入的行数, 队列中累计到该行数时立即写入
+     */
+    int batchSize() default 500;
+
+    /**
+     * 未攒满batchSize时最长等待的毫秒数
+     */
+    long flushInterval() default 100;
+}
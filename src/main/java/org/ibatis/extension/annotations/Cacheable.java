@@ -0,0 +1,18 @@
+package org.ibatis.extension.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * 为mapper开启二级缓存. 同一个@Bind实体的mapper共用一个缓存, @omit写入只淘汰受影响的id,
+ * 其他写语句清空该实体的全部缓存.
+ */
+@Inherited
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cacheable {
+
+    /**
+     * 最多缓存的查询结果数, 超出时淘汰最久未访问的结果; 以实体首个注册的mapper为准
+     */
+    int size() default 1024;
+}
@@ -0,0 +1,25 @@
+package org.ibatis.extension.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * 建表时创建索引. 标注在字段上时为单列索引; 标注在实体类上时由value指定字段名, 按顺序组成联合索引.
+ */
+@Inherited
+@Repeatable(Indexes.class)
+@Target({ElementType.FIELD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Index {
+
+    /**
+     * 索引名, 默认为 表名_列名_idx (唯一索引为 _uk)
+     */
+    String name() default "";
+
+    /**
+     * 联合索引包含的字段名, 仅在实体类上使用
+     */
+    String[] value() default {};
+
+    boolean unique() default false;
+}
@@ -0,0 +1,11 @@
+package org.ibatis.extension.annotations;
+
+import java.lang.annotation.*;
+
+@Inherited
+@Target({ElementType.FIELD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexes {
+
+    Index[] value();
+}
@@ -0,0 +1,13 @@
+package org.ibatis.extension.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * 等同于字段上的 {@code @Index(unique = true)}.
+ * MySQL的TEXT/BLOB列只能建前缀索引, 不能保证唯一; String默认映射为TEXT, 需要用{@link TypeMapping}指定VARCHAR(n)等类型.
+ */
+@Inherited
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Unique {
+}
@@ -9,11 +9,16 @@ public class AppMain {
 
     public static void main(String[] args) {
 
-        SQL sql = new SQL.Builder()
+        //LogMapper是@AsyncAppend, 退出前close写出队列中的行
+        try (SQL sql = new SQL.Builder()
                 .url("mysql://localhost:3306/script")
                 .auth("root", "Loveyi8023")
-                .build();
+                .build()) {
+            run(sql);
+        }
+    }
 
+    private static void run(SQL sql) {
 
 //        TestMapper testMapper = jdbc.getMapper(TestMapper.class);
 //        Test test = new Test();
@@ -4,9 +4,11 @@ import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.annotations.AsyncAppend;
 import org.ibatis.extension.annotations.Bind;
 
 @Bind(Log.class)
+@AsyncAppend
 public interface LogMapper {
 
     @Insert("@omit")
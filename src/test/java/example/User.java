@@ -1,12 +1,18 @@
 package example;
 
 import org.ibatis.extension.annotations.Id;
+import org.ibatis.extension.annotations.Index;
+import org.ibatis.extension.annotations.TypeMapping;
+import org.ibatis.extension.annotations.Unique;
 
 public class User {
 
     @Id(1000)
     public int id;
+    @Index
     public String sid;
+    @Unique
+    @TypeMapping("VARCHAR(64)")
     public String account;
     public String password;
     public String email = "";
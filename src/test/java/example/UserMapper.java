@@ -4,8 +4,13 @@ import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.SQL;
 import org.ibatis.extension.annotations.Bind;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
 @Bind(User.class)
 public interface UserMapper {
 
@@ -15,9 +20,15 @@ public interface UserMapper {
     @Update("@omit")
     void update(User user);
 
+    @Insert("@upsert")
+    void save(User user);
+
     @Select("select*from @table where account=#{account}")
     User findByAccount(@Param("account") String account);
 
+    @Select("select*from @table where account=#{account}")
+    CompletableFuture<User> findByAccountAsync(@Param("account") String account);
+
     @Select("select*from @table where id=#{uid}")
     User findByUid(@Param("uid") int uid);
 
@@ -26,4 +37,11 @@ public interface UserMapper {
 
     @Select("select sum(money) from @table")
     int getTotalMoney();
+
+    @Select("select*from @table where @page(#{after}, 500)")
+    List<User> page(@Param("after") int after);
+
+    default Stream<User> all() {
+        return SQL.keyset(0, this::page, user -> user.id);
+    }
 }
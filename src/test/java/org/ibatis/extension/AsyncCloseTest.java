@@ -0,0 +1,173 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Select;
+import org.ibatis.extension.annotations.AsyncAppend;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * close与并发的append/异步写入竞争时, 已接受的行和future都应完成, 不会丢失或一直挂起
+ */
+class AsyncCloseTest {
+
+    private File file;
+
+    public static class Entry {
+        @Id
+        public int id;
+        public String text;
+    }
+
+    @AsyncAppend(capacity = 64, batchSize = 16, flushInterval = 1000)
+    @Bind(value = Entry.class, name = "entry")
+    interface AppendMapper {
+
+        @Insert("@omit")
+        void add(Entry entry);
+    }
+
+    @AsyncAppend
+    @Bind(value = Entry.class, name = "entry")
+    interface UnusedAppendMapper {
+
+        @Insert("@omit")
+        void add(Entry entry);
+    }
+
+    @Bind(value = Entry.class, name = "entry")
+    interface EntryMapper {
+
+        @Insert("@omit")
+        CompletableFuture<Integer> add(Entry entry);
+
+        @Select("select count(*) from @table")
+        CompletableFuture<Integer> asyncCount();
+
+        @Select("select count(*) from @table")
+        int count();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = File.createTempFile("async-close", ".db");
+        file.delete();
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    void closeWritesEveryAcceptedRow() throws Exception {
+        SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).build();
+        AppendMapper mapper = sql.getMapper(AppendMapper.class);
+        AtomicInteger accepted = new AtomicInteger();
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    while (true) {
+                        mapper.add(entry("append"));
+                        accepted.incrementAndGet();
+                    }
+                } catch (IllegalStateException closed) {
+                    //close之后的append被拒绝
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        Thread.sleep(200);
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            sql.close();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            sql.flush();
+        });
+        assertTrue(accepted.get() > 0);
+
+        try (SQL reopened = new SQL.Builder().url("sqlite:" + file.getPath()).build()) {
+            assertEquals(accepted.get(), reopened.getMapper(EntryMapper.class).count());
+        }
+    }
+
+    @Test
+    void appendAfterCloseWithoutAppenderIsRejected() throws Exception {
+        SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).metrics(true).build();
+        assertEquals(0, sql.getMapper(EntryMapper.class).count());
+        UnusedAppendMapper mapper = sql.getMapper(UnusedAppendMapper.class);
+        sql.close();
+
+        assertThrows(IllegalStateException.class, () -> mapper.add(entry("late")));
+        assertTrue(sql.appendStatistics().isEmpty());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("org.ibatis.extension:*"), null).isEmpty());
+        assertTrue(Thread.getAllStackTraces().keySet().stream().noneMatch(thread -> thread.getName().startsWith("sql-append-Entry")));
+    }
+
+    @Test
+    void closeCompletesPendingFutures() throws Exception {
+        closeCompletesPendingFutures(null);
+        tearDown();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            closeCompletesPendingFutures(executor);
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private void closeCompletesPendingFutures(ExecutorService executor) throws Exception {
+        SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).asyncExecutor(executor).build();
+        EntryMapper mapper = sql.getMapper(EntryMapper.class);
+        assertEquals(0, mapper.count());
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            futures.add(mapper.add(entry("future")));
+        }
+        CompletableFuture<Integer> count = mapper.asyncCount();
+        sql.close();
+
+        for (CompletableFuture<Integer> future : futures) {
+            assertTrue(future.isDone());
+            assertEquals(1, future.get());
+        }
+        assertTrue(count.isDone());
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> mapper.add(entry("late")).get());
+        assertTrue(rejected.getCause() instanceof RejectedExecutionException);
+
+        try (SQL reopened = new SQL.Builder().url("sqlite:" + file.getPath()).build()) {
+            assertEquals(futures.size(), reopened.getMapper(EntryMapper.class).count());
+        }
+    }
+
+    private static Entry entry(String text) {
+        Entry entry = new Entry();
+        entry.text = text;
+        return entry;
+    }
+}
@@ -0,0 +1,99 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Cacheable;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @omit写入只淘汰受影响的id: 缓存mapper在已打开的session中首次注册时, 该session内的写入也要淘汰缓存
+ */
+class EntityCacheTest {
+
+    private File file;
+    private SQL sql;
+
+    public static class Account {
+        @Id
+        public int id;
+        public String name;
+    }
+
+    @Bind(value = Account.class, name = "account")
+    interface AccountMapper {
+
+        @Insert("@omit")
+        void add(Account account);
+    }
+
+    @Cacheable
+    @Bind(value = Account.class, name = "account")
+    interface CachedAccountMapper {
+
+        @Select("select * from @table where id = #{id}")
+        Account find(@Param("id") int id);
+
+        @Update("@omit")
+        boolean update(Account account);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = File.createTempFile("entity-cache", ".db");
+        file.delete();
+        sql = new SQL.Builder().url("sqlite:" + file.getPath()).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sql.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    void firstUseInsideTransactionEvictsUpdatedId() {
+        Account account = account("before", 0);
+        sql.getMapper(AccountMapper.class).add(account);
+
+        sql.transaction(tx -> {
+            CachedAccountMapper mapper = tx.getMapper(CachedAccountMapper.class);
+            assertEquals("before", mapper.find(account.id).name);
+            assertTrue(mapper.update(account("after", account.id)));
+            return null;
+        });
+
+        assertEquals("after", sql.getMapper(CachedAccountMapper.class).find(account.id).name);
+    }
+
+    @Test
+    void updateOutsideTransactionEvictsCachedId() {
+        Account account = account("before", 0);
+        sql.getMapper(AccountMapper.class).add(account);
+
+        CachedAccountMapper mapper = sql.getMapper(CachedAccountMapper.class);
+        assertEquals("before", mapper.find(account.id).name);
+        assertEquals("before", mapper.find(account.id).name);
+        assertTrue(mapper.update(account("after", account.id)));
+        assertEquals("after", mapper.find(account.id).name);
+    }
+
+    //更新用新的实体, 不修改查询返回的对象
+    private static Account account(String name, int id) {
+        Account account = new Account();
+        account.id = id;
+        account.name = name;
+        return account;
+    }
+}
@@ -0,0 +1,105 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.session.Configuration;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 多行插入按行数与估算的语句字节数分块
+ */
+class InsertChunkerTest {
+
+    public static class Document {
+        @Id
+        public int id;
+        public String title;
+        public byte[] body;
+    }
+
+    @Bind(value = Document.class, name = "document")
+    interface DocumentMapper {
+
+        @Insert("@omit")
+        int addAll(List<Document> documents);
+
+        @Select("select count(*) from @table")
+        int count();
+
+        @Select("select sum(length(body)) from @table")
+        long bodyBytes();
+    }
+
+    @Test
+    void splitsByRowsWithoutPacketLimit() {
+        InsertChunker chunker = chunker(10, 0);
+        List<Document> rows = documents(25, 1000);
+        assertEquals(10, chunker.end(rows, 0));
+        assertEquals(20, chunker.end(rows, 10));
+        assertEquals(25, chunker.end(rows, 20));
+    }
+
+    @Test
+    void splitsByEstimatedBytes() {
+        //每行的body转义后约20KB, 64KB的上限每块最多两三行
+        InsertChunker chunker = chunker(1000, 64 * 1024);
+        List<Document> rows = documents(100, 10_000);
+        int chunks = 0;
+        for (int i = 0, end; i < rows.size(); i = end) {
+            end = chunker.end(rows, i);
+            assertTrue(end > i);
+            assertTrue(end - i <= 3, "rows " + i + ".." + end);
+            chunks++;
+        }
+        assertTrue(chunks >= 34, "chunks " + chunks);
+    }
+
+    @Test
+    void oversizedRowStillFormsAChunk() {
+        InsertChunker chunker = chunker(1000, 8 * 1024);
+        List<Document> rows = documents(3, 100_000);
+        assertEquals(1, chunker.end(rows, 0));
+        assertEquals(2, chunker.end(rows, 1));
+    }
+
+    @Test
+    void bulkInsertRespectsMaxPacketBytes() {
+        File file = new File(System.getProperty("java.io.tmpdir"), "insert-chunker-" + System.nanoTime() + ".db");
+        try (SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).maxPacketBytes(64 * 1024).build()) {
+            DocumentMapper mapper = sql.getMapper(DocumentMapper.class);
+            assertEquals(100, mapper.addAll(documents(100, 10_000)));
+            assertEquals(100, mapper.count());
+            assertEquals(100 * 10_000L, mapper.bodyBytes());
+        } finally {
+            for (String suffix : new String[]{"", "-wal", "-shm"}) {
+                new File(file.getPath() + suffix).delete();
+            }
+        }
+    }
+
+    private static InsertChunker chunker(int maxRows, long maxPacketBytes) {
+        List<Field> fields = Util.toInsertFields(DocumentMapper.class.getAnnotation(Bind.class));
+        return new InsertChunker(new Configuration(), Document.class, fields, maxRows, maxPacketBytes);
+    }
+
+    private static List<Document> documents(int count, int bodyBytes) {
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Document document = new Document();
+            document.title = String.join("", Collections.nCopies(10, "标题"));
+            document.body = new byte[bodyBytes];
+            documents.add(document);
+        }
+        return documents;
+    }
+}
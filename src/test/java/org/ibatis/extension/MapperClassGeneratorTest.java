@@ -0,0 +1,174 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 生成的mapper实现类与Proxy对同一个库执行相同的调用, 结果应一致
+ */
+class MapperClassGeneratorTest {
+
+    private static File file;
+    private static SQL generated;
+    private static SQL proxied;
+
+    public static class Item {
+        @Id
+        public int id;
+        public String name;
+        public long qty;
+        public double price;
+
+        @Override
+        public String toString() {
+            return "Item{" + id + "," + name + "," + qty + "," + price + "}";
+        }
+    }
+
+    @Bind(value = Item.class, name = "item")
+    interface ItemMapper {
+
+        @Insert("@omit")
+        void add(Item item);
+
+        @Insert("@omit")
+        int addAll(List<Item> items);
+
+        @Update("@omit")
+        boolean update(Item item);
+
+        @Update("update @table set qty = qty + #{delta} where price < #{price}")
+        long restock(@Param("delta") long delta, @Param("price") double price);
+
+        @Select("select count(*) from @table")
+        int count();
+
+        @Select("select sum(qty) from @table")
+        long total();
+
+        @Select("select avg(price) from @table")
+        double averagePrice();
+
+        @Select("select id from @table order by id")
+        int[] ids();
+
+        @Select("select qty from @table order by id")
+        long[] quantities();
+
+        @Select("select price from @table order by id")
+        double[] prices();
+
+        @Select("select * from @table order by id")
+        Item[] all();
+
+        @Select("select * from @table where id = #{id}")
+        Item find(@Param("id") int id);
+
+        @Select("select * from @table where qty > #{qty} and price < #{price} and name <> #{name} order by id")
+        List<Item> filter(@Param("qty") long qty, @Param("price") double price, @Param("name") String name);
+
+        default int countTwice() {
+            return count() * 2;
+        }
+
+        default String nameOf(int id) {
+            Item item = find(id);
+            return item == null ? null : item.name;
+        }
+    }
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        file = File.createTempFile("mapper-generator", ".db");
+        file.delete();
+        generated = new SQL.Builder().url("sqlite:" + file.getPath()).generateMappers(true).build();
+        proxied = new SQL.Builder().url("sqlite:" + file.getPath()).build();
+
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            items.add(item("item" + i, i * 3L, i * 1.5));
+        }
+        assertEquals(20, generated.getMapper(ItemMapper.class).addAll(items));
+    }
+
+    @AfterAll
+    static void tearDown() {
+        generated.close();
+        proxied.close();
+        file.delete();
+    }
+
+    @Test
+    void generatesImplementation() {
+        assumeTrue(Runtime.version().feature() >= 15, "hidden classes require JDK 15");
+        assertFalse(Proxy.isProxyClass(generated.getMapper(ItemMapper.class).getClass()));
+        assertTrue(Proxy.isProxyClass(proxied.getMapper(ItemMapper.class).getClass()));
+    }
+
+    @Test
+    void readsMatchProxy() {
+        ItemMapper a = generated.getMapper(ItemMapper.class), b = proxied.getMapper(ItemMapper.class);
+        assertEquals(b.count(), a.count());
+        assertEquals(b.total(), a.total());
+        assertEquals(b.averagePrice(), a.averagePrice());
+        assertArrayEquals(b.ids(), a.ids());
+        assertArrayEquals(b.quantities(), a.quantities());
+        assertArrayEquals(b.prices(), a.prices());
+        assertEquals(String.valueOf(b.find(3)), String.valueOf(a.find(3)));
+        assertNull(a.find(-1));
+        assertEquals(String.valueOf(b.filter(10, 20.5, "item9")), String.valueOf(a.filter(10, 20.5, "item9")));
+        assertEquals(a.all().length, a.count());
+        assertEquals(String.valueOf(b.all()[5]), String.valueOf(a.all()[5]));
+    }
+
+    @Test
+    void defaultMethodsDispatchThroughGeneratedClass() {
+        ItemMapper a = generated.getMapper(ItemMapper.class), b = proxied.getMapper(ItemMapper.class);
+        assertEquals(b.countTwice(), a.countTwice());
+        assertEquals(b.nameOf(2), a.nameOf(2));
+        assertNull(a.nameOf(-1));
+    }
+
+    @Test
+    void writesMatchProxy() {
+        ItemMapper a = generated.getMapper(ItemMapper.class), b = proxied.getMapper(ItemMapper.class);
+        Item item = item("written", 1, 99.5);
+        a.add(item);
+        assertTrue(item.id > 0);
+        assertEquals("written", b.nameOf(item.id));
+
+        item.name = "updated";
+        assertTrue(a.update(item));
+        assertEquals("updated", b.find(item.id).name);
+        item.id = -1;
+        assertFalse(a.update(item));
+
+        long before = b.total();
+        long restocked = a.restock(2, 3.0);
+        assertEquals(before + restocked * 2, b.total());
+        assertEquals(restocked, b.restock(0, 3.0));
+    }
+
+    private static Item item(String name, long qty, double price) {
+        Item item = new Item();
+        item.name = name;
+        item.qty = qty;
+        item.price = price;
+        return item;
+    }
+}
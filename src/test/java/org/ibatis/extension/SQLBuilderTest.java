@@ -0,0 +1,44 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Select;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 每个连接各自打开独立库的SQLite url不拆分读连接池, 查询能读到写入的行
+ */
+class SQLBuilderTest {
+
+    public static class Tag {
+        @Id
+        public int id;
+        public String name;
+    }
+
+    @Bind(value = Tag.class, name = "tag")
+    interface TagMapper {
+
+        @Insert("@omit")
+        void add(Tag tag);
+
+        @Select("select count(*) from @table")
+        int count();
+    }
+
+    @Test
+    void privateDatabasesShareOneConnection() {
+        for (String url : new String[]{"sqlite:", "jdbc:sqlite:", "sqlite:file:", "sqlite:file:?cache=private", "sqlite::memory:",
+                "sqlite:file:tags?mode=memory"}) {
+            try (SQL sql = new SQL.Builder().url(url).readPoolSize(4).build()) {
+                TagMapper mapper = sql.getMapper(TagMapper.class);
+                mapper.add(new Tag());
+                mapper.add(new Tag());
+                assertEquals(2, mapper.count(), url);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SQLite内存库只有一个连接: 遍历未关闭的结果时调用其他mapper方法应立即失败, 在transaction内遍历则共用该连接
+ */
+class StreamingTest {
+
+    private SQL sql;
+
+    public static class Note {
+        @Id
+        public int id;
+        public String text;
+    }
+
+    @Bind(value = Note.class, name = "note")
+    interface NoteMapper {
+
+        @Insert("@omit")
+        int addAll(List<Note> notes);
+
+        @Select("select * from @table order by id")
+        Stream<Note> stream();
+
+        @Select("select text from @table order by id")
+        Stream<String> texts();
+
+        @Select("select text from @table where id = #{id}")
+        String text(@Param("id") int id);
+    }
+
+    @Bind(value = Note.class, name = "note")
+    interface IteratorMapper {
+
+        @Select("select * from @table order by id")
+        Iterator<Note> iterator();
+    }
+
+    @BeforeEach
+    void setUp() {
+        sql = new SQL.Builder().url("sqlite::memory:").checkoutTimeout(30_000).build();
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Note note = new Note();
+            note.text = "note" + i;
+            notes.add(note);
+        }
+        assertEquals(5, sql.getMapper(NoteMapper.class).addAll(notes));
+    }
+
+    @AfterEach
+    void tearDown() {
+        sql.close();
+    }
+
+    @Test
+    void nestedCallFailsFast() {
+        NoteMapper mapper = sql.getMapper(NoteMapper.class);
+        Exception e = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(Exception.class, () -> {
+            try (Stream<Note> stream = mapper.stream()) {
+                stream.forEach(note -> mapper.text(note.id));
+            }
+        }));
+        assertTrue(String.valueOf(e.getMessage()).contains("held by the current thread"), e.getMessage());
+
+        //连接已归还, 后续调用不受影响
+        assertEquals("note0", mapper.text(1));
+    }
+
+    @Test
+    void iteratorIsRejected() {
+        //Iterator没有close, 提前break会一直占用连接
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> sql.getMapper(IteratorMapper.class));
+        assertTrue(e.getMessage().contains("Stream or Cursor"), e.getMessage());
+    }
+
+    @Test
+    void nullRowsAreStreamed() {
+        sql.getMapper(NoteMapper.class).addAll(List.of(new Note()));
+        try (Stream<String> texts = sql.getMapper(NoteMapper.class).texts()) {
+            assertEquals(Arrays.asList("note0", "note1", "note2", "note3", "note4", null), texts.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void nestedCallInsideTransaction() {
+        List<String> texts = sql.transaction(tx -> {
+            NoteMapper mapper = tx.getMapper(NoteMapper.class);
+            try (Stream<Note> stream = mapper.stream()) {
+                return stream.map(note -> mapper.text(note.id)).collect(Collectors.toList());
+            }
+        });
+        assertEquals(List.of("note0", "note1", "note2", "note3", "note4"), texts);
+    }
+}
@@ -0,0 +1,191 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Select;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Id;
+import org.ibatis.extension.annotations.Index;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SQLite下@within/@without/@between的展开结果: 走ts列上的索引, 且与改写前对列格式化后比较的表达式选中相同的行
+ */
+class TagParserTest {
+
+    private static final String START = "#{start}";
+    private static final String END = "#{end}";
+
+    private static Connection conn;
+
+    static class Event {
+        @Id
+        public int id;
+        @Index
+        public long ts;
+    }
+
+    @Bind(value = Event.class, name = "event")
+    interface EventMapper {
+
+        @Select("select id from @table where @within(ts, second, 30)")
+        List<Integer> withinSecond();
+
+        @Select("select id from @table where @within(ts, minute, 10)")
+        List<Integer> withinMinute();
+
+        @Select("select id from @table where @within(ts, hour, 5)")
+        List<Integer> withinHour();
+
+        @Select("select id from @table where @within(ts, day, 3)")
+        List<Integer> withinDay();
+
+        @Select("select id from @table where @within(ts, month, 2)")
+        List<Integer> withinMonth();
+
+        @Select("select id from @table where @within(ts, year, 1)")
+        List<Integer> withinYear();
+
+        @Select("select id from @table where @without(ts, hour, 5)")
+        List<Integer> withoutHour();
+
+        @Select("select id from @table where @without(ts, day, 3)")
+        List<Integer> withoutDay();
+
+        @Select("select id from @table where @without(ts, month, 2)")
+        List<Integer> withoutMonth();
+
+        @Select("select id from @table where @between(ts, #{start}, #{end})")
+        List<Integer> between();
+
+        @Select("select id from @table where @notbetween(ts, #{start}, #{end})")
+        List<Integer> notBetween();
+    }
+
+    @BeforeAll
+    static void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE `event`(`id` INTEGER PRIMARY KEY AUTOINCREMENT, `ts` INTEGER NOT NULL)");
+            stmt.execute("CREATE INDEX `event_ts_idx` ON `event`(`ts`)");
+        }
+
+        //时间戳集中在当前时间附近, 各单位的边界两侧都有数据
+        long now = System.currentTimeMillis();
+        long[] spans = {2 * 3600_000L, 5 * 86400_000L, 3 * 365 * 86400_000L};
+        Random random = new Random(7);
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO `event`(`ts`) VALUES(?)")) {
+            for (int i = 0; i < 30000; i++) {
+                long span = spans[i % spans.length];
+                ps.setLong(1, now + (long) ((random.nextDouble() * 2 - 1) * span));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ANALYZE");
+        }
+    }
+
+    @AfterAll
+    static void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    void within() throws Exception {
+        check("withinSecond", legacyWithin("second", 30, false));
+        check("withinMinute", legacyWithin("minute", 10, false));
+        check("withinHour", legacyWithin("hour", 5, false));
+        check("withinDay", legacyWithin("day", 3, false));
+        check("withinMonth", legacyWithin("month", 2, false));
+        check("withinYear", legacyWithin("year", 1, false));
+    }
+
+    @Test
+    void without() throws Exception {
+        check("withoutHour", legacyWithin("hour", 5, true));
+        check("withoutDay", legacyWithin("day", 3, true));
+        check("withoutMonth", legacyWithin("month", 2, true));
+    }
+
+    @Test
+    void between() throws Exception {
+        check("between", legacyBetween(false));
+        check("notBetween", legacyBetween(true));
+    }
+
+    /**
+     * 展开后的条件走索引, 且与旧表达式在同一条语句中逐行比较(同一次step内'now'不变)
+     */
+    private void check(String name, String legacy) throws Exception {
+        String condition = bind(expand(name));
+
+        List<String> plan = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT `id` FROM `event` WHERE " + condition)) {
+            while (rs.next()) {
+                plan.add(rs.getString("detail"));
+            }
+        }
+        assertTrue(plan.stream().anyMatch(detail -> detail.startsWith("SEARCH") && detail.contains("event_ts_idx")), name + ": " + plan);
+        assertTrue(plan.stream().noneMatch(detail -> detail.startsWith("SCAN")), name + ": " + plan);
+
+        String sql = String.format("SELECT count(*), sum((%s)), sum((%s)), sum((%s) <> (%s)) FROM `event`",
+                condition, bind(legacy), condition, bind(legacy));
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            assertTrue(rs.next());
+            long total = rs.getLong(1), matched = rs.getLong(2), expected = rs.getLong(3), mismatched = rs.getLong(4);
+            assertEquals(0, mismatched, name + ": rows differ from the legacy expression");
+            assertEquals(expected, matched, name);
+            assertTrue(matched > 0 && matched < total, name + " should select a proper subset, matched " + matched + " of " + total);
+        }
+    }
+
+    private static String expand(String name) throws NoSuchMethodException {
+        Method method = EventMapper.class.getMethod(name);
+        Select select = (Select) new TagParser(Driver.SQLITE).replaceTags(method, method.getAnnotation(Select.class));
+        String sql = select.value()[0];
+        return sql.substring(sql.indexOf(" where ") + " where ".length());
+    }
+
+    private static String bind(String condition) {
+        LocalDate today = LocalDate.now();
+        return condition.replace(START, "'" + today.minusDays(20) + "'").replace(END, "'" + today.plusDays(1) + "'");
+    }
+
+    /**
+     * 改写前SQLite的@within/@without
+     */
+    private static String legacyWithin(String unit, int value, boolean without) {
+        String start = unit.equals("second") || unit.equals("minute") || unit.equals("hour") ? "'now','localtime'" : "'now','start of " + unit + "'";
+        return "datetime(ts/1000, 'unixepoch', 'localtime')" + (without ? " NOT BETWEEN " : " BETWEEN ")
+                + "datetime(" + start + ",'-'||abs(0-" + value + ")||' " + unit + "')"
+                + " AND "
+                + "datetime(" + start + ",'+'||abs(" + value + "+1)||' " + unit + "')";
+    }
+
+    /**
+     * 改写前默认样式的@between/@notbetween
+     */
+    private static String legacyBetween(boolean not) {
+        return "strftime('%Y-%m-%d',datetime(ts/1000,'unixepoch','localtime'))" + (not ? " NOT BETWEEN " : " BETWEEN ") + START + " AND " + END;
+    }
+}
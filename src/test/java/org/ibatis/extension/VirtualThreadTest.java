@@ -0,0 +1,164 @@
+package org.ibatis.extension;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.ibatis.extension.annotations.Bind;
+import org.ibatis.extension.annotations.Cacheable;
+import org.ibatis.extension.annotations.Id;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 数千个虚拟线程并发注册mapper、读写与查缓存时, 扩展自身的代码不应在持有监视器时阻塞(pin住载体线程).
+ * 由virtualThreadTest任务在JDK 21上运行并打开jdk.tracePinnedThreads, pin住时JDK把持有监视器的栈帧打印到System.out;
+ * 普通的test任务中跳过
+ */
+class VirtualThreadTest {
+
+    private static final int TASKS = 4000;
+
+    private File file;
+
+    public static class Counter {
+        @Id
+        public int id;
+        public String name;
+        public long hits;
+    }
+
+    @Cacheable
+    @Bind(value = Counter.class, name = "counter")
+    interface CounterMapper {
+
+        @Insert("@omit")
+        void add(Counter counter);
+
+        @Select("select * from @table where id = #{id}")
+        Counter find(@Param("id") int id);
+
+        @Select("select count(*) from @table")
+        int count();
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = File.createTempFile("virtual-thread", ".db");
+        file.delete();
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    void connectionPoolDoesNotPin() throws Exception {
+        requireVirtualThreads();
+        try (SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).readPoolSize(4).checkoutTimeout(60_000).build()) {
+            run(sql);
+        }
+    }
+
+    @Test
+    void boundedDataSourceDoesNotPin() throws Exception {
+        requireVirtualThreads();
+        PooledDataSource dataSource = new PooledDataSource("org.sqlite.JDBC", "jdbc:sqlite:" + file.getPath(), null, null);
+        dataSource.setPoolMaximumActiveConnections(4);
+        //外部连接池不经过Builder的PRAGMA设置, 多个写连接需要等待锁而不是立即SQLITE_BUSY
+        Properties properties = new Properties();
+        properties.setProperty("journal_mode", "WAL");
+        properties.setProperty("busy_timeout", "60000");
+        properties.setProperty("transaction_mode", "IMMEDIATE");
+        dataSource.setDriverProperties(properties);
+        try (SQL sql = new SQL.Builder().url("sqlite:" + file.getPath()).dataSource(dataSource, 4).checkoutTimeout(60_000).build()) {
+            run(sql);
+        } finally {
+            dataSource.forceCloseAll();
+        }
+    }
+
+    @Test
+    void credentialsShareThePermits() throws Exception {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.sqlite.JDBC", "jdbc:sqlite::memory:", null, null);
+        BoundedDataSource bounded = new BoundedDataSource(dataSource, 2, 100, null, null);
+        Connection first = bounded.getConnection("user", "password");
+        try (Connection second = bounded.getConnection()) {
+            assertThrows(SQLTransientConnectionException.class, () -> bounded.getConnection("user", "password"));
+            assertThrows(SQLTransientConnectionException.class, bounded::getConnection);
+        }
+        first.close();
+        //重复close不会多归还许可
+        first.close();
+        try (Connection a = bounded.getConnection("user", "password"); Connection b = bounded.getConnection("user", "password")) {
+            assertThrows(SQLTransientConnectionException.class, bounded::getConnection);
+        }
+    }
+
+    private static void requireVirtualThreads() {
+        assumeTrue(System.getProperty("jdk.tracePinnedThreads") != null, "run by the virtualThreadTest task");
+        assertTrue(Runtime.version().feature() >= 21, "virtualThreadTest requires JDK 21");
+    }
+
+    /**
+     * 每个虚拟线程首次调用时并发注册mapper, 再写入一行并按id查询两次(第二次命中缓存)
+     */
+    private static void run(SQL sql) throws Exception {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(trace, true, StandardCharsets.UTF_8));
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < TASKS; i++) {
+                String name = "counter" + i;
+                futures.add(executor.submit(() -> {
+                    CounterMapper mapper = sql.getMapper(CounterMapper.class);
+                    Counter counter = new Counter();
+                    counter.name = name;
+                    mapper.add(counter);
+                    return name.equals(mapper.find(counter.id).name) && name.equals(mapper.find(counter.id).name);
+                }));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+        } finally {
+            System.setOut(out);
+        }
+
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        assertEquals(TASKS, sql.getMapper(CounterMapper.class).count());
+
+        //short模式只打印持有监视器或本地方法的栈帧
+        List<String> pinned = trace.toString(StandardCharsets.UTF_8).lines()
+                .filter(line -> line.contains("org.ibatis.extension.") && line.contains("<=="))
+                .distinct()
+                .collect(Collectors.toList());
+        assertTrue(pinned.isEmpty(), () -> String.join("\n", pinned));
+    }
+}